@@ -21,10 +21,40 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Parser {
     static boolean explain = false;
 
+    // Zql has no LIMIT, so a trailing "LIMIT n" is cut off a statement before it is parsed
+    private static final Pattern LIMIT_CLAUSE =
+            Pattern.compile("(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$");
+
+    /**
+     * @return the n of a statement's trailing "LIMIT n" clause, or
+     *         {@link LogicalPlan#NO_LIMIT} if it has none
+     */
+    static int limitOf(String statement) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(statement);
+        if (!m.matches()) {
+            return LogicalPlan.NO_LIMIT;
+        }
+        try {
+            return Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(2) + " is too large");
+        }
+    }
+
+    /**
+     * @return a statement without its trailing LIMIT clause, if any
+     */
+    static String withoutLimit(String statement) {
+        Matcher m = LIMIT_CLAUSE.matcher(statement);
+        return m.matches() ? m.group(1) + m.group(3) : statement;
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -258,18 +288,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -281,9 +308,20 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, LogicalPlan.NO_LIMIT);
+    }
+
+    /**
+     * @param limit the n of the query's LIMIT clause, or {@link LogicalPlan#NO_LIMIT}
+     * @see #handleQueryStatement(ZQuery, TransactionId)
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +503,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(withoutLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(limitOf(s));
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -481,6 +521,16 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    private static String readStatementText(InputStream is) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            text.write(buf, 0, n);
+        }
+        return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -503,8 +553,14 @@ public class Parser {
 
     private void processNextStatementImpl(InputStream is, boolean expectNoErrors) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String statement = readStatementText(is);
+            int limit = limitOf(statement);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    withoutLimit(statement).getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (limit != LogicalPlan.NO_LIMIT && !(s instanceof ZQuery)) {
+                throw new simpledb.ParsingException("LIMIT is only supported on queries");
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -525,7 +581,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -7,6 +7,7 @@ import simpledb.storage.StringField;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /**
@@ -30,6 +31,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer bb, int offset) {
+            return new IntField(bb.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -48,6 +54,19 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer bb, int offset) {
+            int strLen = bb.getInt(offset);
+            if (bb.hasArray()) {
+                return new StringField(new String(bb.array(), bb.arrayOffset() + offset + 4, strLen), STRING_LEN);
+            }
+            byte[] bs = new byte[strLen];
+            ByteBuffer dup = bb.duplicate();
+            dup.position(offset + 4);
+            dup.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -66,4 +85,15 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * Like {@link #parse(DataInputStream)}, but decodes the field stored at
+     * the given offset of a buffer (possibly a slice of a memory-mapped file),
+     * without copying the page. The buffer's position is not changed.
+     *
+     * @param bb     The buffer to read from
+     * @param offset The offset of the field in bb
+     * @return a Field object of the same type as this object
+     */
+    public abstract Field parse(ByteBuffer bb, int offset);
+
 }
@@ -1,20 +1,54 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
+import java.io.IOException;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * The groups are held in memory up to a memory budget. Past the budget they
+ * are spilled to temporary files and merged back one partition at a time
+ * (see {@link AggregateSpill}), so that a GROUP BY with more groups than fit
+ * in memory still completes.
+ * <p>
+ * An aggregate directly over a sequential scan of a large heap file runs in
+ * two phases: worker threads each aggregate a disjoint range of pages into a
+ * table of partial aggregates (sum and count, rather than an average), and
+ * the partial tables are then merged into the final groups. The merge
+ * combines the partial accumulators the way SC_AVG combines SUM_COUNT
+ * results, but on the 64-bit sums, which an int SUM_COUNT tuple could not
+ * carry without overflow.
  */
 public class Aggregate extends Operator {
 
+    /**
+     * Default memory budget for the groups of one aggregate, in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    /**
+     * A worker is only worth starting for at least this many pages.
+     */
+    public static final int MIN_PAGES_PER_WORKER = ParallelScan.MIN_PAGES_PER_WORKER;
+
+    // marks the end of a worker's partial tables
+    private static final Object WORKER_DONE = new Object();
+
     private static final long serialVersionUID = 1L;
     private OpIterator childIterator;
     private int aggrField;
@@ -22,6 +56,9 @@ public class Aggregate extends Operator {
     private Aggregator.Op aop;
     private OpIterator resIterator;
     private Aggregator aggregator;
+    private long memoryBudget;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private transient AggregateSpill spill;
 
     /**
      * Constructor.
@@ -37,25 +74,66 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int groupField, Aggregator.Op aop) {
+        this(child, afield, groupField, aop, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryBudget the most memory, in bytes, the groups may take before
+     *                     they are spilled to disk
+     * @see #Aggregate(OpIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(OpIterator child, int afield, int groupField, Aggregator.Op aop, long memoryBudget) {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-14 20:00:00
         this.childIterator = child;
         this.aggrField = afield;
         this.groupField = groupField;
         this.aop = aop;
-        Type gbFieldType = groupField == -1 ? null : child.getTupleDesc().getFieldType(groupField);
-        switch (child.getTupleDesc().getFieldType(afield)){
+        this.memoryBudget = memoryBudget;
+        this.aggregator = newAggregator();
+        this.resIterator = null;
+
+    }
+
+    private Aggregator newAggregator() {
+        Type gbFieldType = groupField == -1 ? null : childIterator.getTupleDesc().getFieldType(groupField);
+        switch (childIterator.getTupleDesc().getFieldType(aggrField)){
             case INT_TYPE:
-                aggregator = new IntegerAggregator(groupField, gbFieldType, afield, aop);
-                break;
+                return new IntegerAggregator(groupField, gbFieldType, aggrField, aop);
             case STRING_TYPE:
-                aggregator = new StringAggregator(groupField, gbFieldType, afield, aop);
-                break;
+                return new StringAggregator(groupField, gbFieldType, aggrField, aop);
             default:
                 throw new IllegalArgumentException("unsupported type");
         }
-        this.resIterator = null;
+    }
+
+    private GroupTable groups() {
+        return groupsOf(aggregator);
+    }
 
+    private static GroupTable groupsOf(Aggregator aggregator) {
+        if (aggregator instanceof IntegerAggregator) {
+            return ((IntegerAggregator) aggregator).groups();
+        }
+        return ((StringAggregator) aggregator).groups();
+    }
+
+    /**
+     * @return the most worker threads a scan of a large heap file is split
+     *         over; defaults to the number of processors
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism the most worker threads to use; 1 aggregates on the
+     *                    calling thread only
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
     }
 
     /**
@@ -120,16 +198,159 @@ public class Aggregate extends Operator {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-14 20:05:15
         super.open();
-        childIterator.open();
-        while (childIterator.hasNext()) {
-            aggregator.mergeTupleIntoGroup(childIterator.next());
+        int workers = ParallelScan.workers(childIterator, parallelism);
+        try {
+            if (workers > 1) {
+                aggregateParallel(workers);
+            } else {
+                childIterator.open();
+                while (childIterator.hasNext()) {
+                    aggregator.mergeTupleIntoGroup(childIterator.next());
+                    if (groups().memoryUsage() > memoryBudget) {
+                        spillGroups();
+                    }
+                }
+                this.childIterator.close();
+            }
+            if (spill != null) {
+                spillGroups();
+                resIterator = spill.iterator();
+            } else {
+                resIterator = aggregator.iterator();
+            }
+        } catch (IOException e) {
+            closeSpill();
+            throw new DbException("could not spill aggregate: " + e.getMessage());
         }
-        this.childIterator.close();
-        resIterator = aggregator.iterator();
         resIterator.open();
 
     }
 
+    /**
+     * Aggregate the child scan with several workers, each over its own range
+     * of pages, and merge their partial groups here. A worker hands its
+     * groups over whenever they outgrow its share of the memory budget, so
+     * the budget holds for the whole aggregate.
+     */
+    private void aggregateParallel(int workers) throws DbException, TransactionAbortedException, IOException {
+        SeqScan scan = (SeqScan) childIterator;
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        TransactionId tid = scan.getTransactionId();
+        int numPages = file.numPages();
+        long share = memoryBudget / workers;
+        BlockingQueue<Object> partials = new ArrayBlockingQueue<>(workers);
+        // 某个worker失败后通知其余worker尽早结束
+        AtomicBoolean failed = new AtomicBoolean();
+
+        for (int w = 0; w < workers; w++) {
+            int first = ParallelScan.firstPage(numPages, w, workers);
+            int end = ParallelScan.firstPage(numPages, w + 1, workers);
+            ParallelScan.WORKERS.execute(() -> {
+                DbFileIterator it = file.viewIterator(tid, first, end);
+                try {
+                    Aggregator local = newAggregator();
+                    it.open();
+                    while (!failed.get() && it.hasNext()) {
+                        local.mergeTupleIntoGroup(it.next());
+                        if (groupsOf(local).memoryUsage() > share) {
+                            partials.put(groupsOf(local));
+                            local = newAggregator();
+                        }
+                    }
+                    if (!failed.get()) {
+                        partials.put(groupsOf(local));
+                    }
+                } catch (Throwable e) {
+                    failed.set(true);
+                    putUninterruptibly(partials, e);
+                } finally {
+                    it.close();
+                    putUninterruptibly(partials, WORKER_DONE);
+                }
+            });
+        }
+
+        Throwable failure = null;
+        boolean interrupted = false;
+        // 即使出错也要等所有worker结束，它们还在使用这个事务的页
+        for (int done = 0; done < workers; ) {
+            Object p;
+            try {
+                p = partials.take();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                failed.set(true);
+                continue;
+            }
+            if (p == WORKER_DONE) {
+                done++;
+            } else if (p instanceof Throwable) {
+                if (failure == null) {
+                    failure = (Throwable) p;
+                }
+            } else if (failure == null && !interrupted) {
+                try {
+                    groups().mergeAll((GroupTable) p);
+                    if (groups().memoryUsage() > memoryBudget) {
+                        spillGroups();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                    failed.set(true);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while aggregating");
+        }
+        if (failure instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) failure;
+        } else if (failure instanceof DbException) {
+            throw (DbException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Object> queue, Object o) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(o);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the groups aggregated so far to disk and start over with none.
+     */
+    private void spillGroups() throws IOException {
+        if (spill == null) {
+            spill = new AggregateSpill(groupField == Aggregator.NO_GROUPING ? null
+                    : childIterator.getTupleDesc().getFieldType(groupField), aop, getTupleDesc(), memoryBudget);
+        }
+        spill.spill(groups());
+        aggregator = newAggregator();
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
@@ -167,12 +388,18 @@ public class Aggregate extends Operator {
     public TupleDesc getTupleDesc() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-14 20:08:32
+        TupleDesc td;
         if (this.groupField == Aggregator.NO_GROUPING)
-            return new TupleDesc(new Type[]{Type.INT_TYPE},
+            td = new TupleDesc(new Type[]{Type.INT_TYPE},
                     new String[]{this.aop.toString() + "(" + this.childIterator.getTupleDesc().getFieldName(aggrField) + ")"});
         else
-            return new TupleDesc(new Type[]{this.childIterator.getTupleDesc().getFieldType(groupField), Type.INT_TYPE},
+            td = new TupleDesc(new Type[]{this.childIterator.getTupleDesc().getFieldType(groupField), Type.INT_TYPE},
                     new String[]{this.childIterator.getTupleDesc().getFieldName(groupField), this.aop.toString() + "(" + this.childIterator.getTupleDesc().getFieldName(aggrField) + ")"});
+        if (this.aop == Aggregator.Op.SUM_COUNT)
+            // SUM_COUNT的结果在sum之后多一列count
+            td = TupleDesc.merge(td, new TupleDesc(new Type[]{Type.INT_TYPE},
+                    new String[]{"count(" + this.childIterator.getTupleDesc().getFieldName(aggrField) + ")"}));
+        return td;
 
     }
 
@@ -181,6 +408,8 @@ public class Aggregate extends Operator {
         // Done by Huangyihang in 2023-02-14 20:10:08
         super.close();
         resIterator.close();
+        closeSpill();
+        aggregator = newAggregator();
     }
 
     @Override
@@ -0,0 +1,222 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The groups of an {@link Aggregate} that did not fit in its memory budget.
+ * <p>
+ * Whenever the group table grows past the budget, every group is written as
+ * a partial-aggregate tuple to one of {@link GroupTable#PARTITIONS} spill
+ * files, chosen by the hash of its key, and the table starts over empty. The
+ * same key can therefore be spilled many times, but always to the same
+ * partition. The results are then produced one partition at a time, by
+ * merging its partial tuples into a fresh table; a partition that still does
+ * not fit is split again on other bits of the hash, up to
+ * {@link GroupTable#MAX_PARTITION_LEVEL} times.
+ */
+class AggregateSpill {
+
+    /**
+     * A spill file whose groups remain to be merged, and how many times its
+     * groups have been partitioned.
+     */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+        final boolean derived;
+
+        Partition(SpillFile file, int level, boolean derived) {
+            this.file = file;
+            this.level = level;
+            this.derived = derived;
+        }
+    }
+
+    private final Type keyType;
+    private final Aggregator.Op op;
+    private final TupleDesc resultDesc;
+    private final TupleDesc partialDesc;
+    private final long memoryBudget;
+    private final SpillFile[] partitions;
+
+    /**
+     * @param keyType      the type of the group-by field, or null without grouping
+     * @param op           the aggregate to compute
+     * @param resultDesc   the schema of the result tuples
+     * @param memoryBudget the most memory, in bytes, one group table may use
+     */
+    AggregateSpill(Type keyType, Aggregator.Op op, TupleDesc resultDesc, long memoryBudget)
+            throws IOException {
+        this.keyType = keyType;
+        this.op = op;
+        this.resultDesc = resultDesc;
+        this.partialDesc = GroupTable.partialTupleDesc(keyType);
+        this.memoryBudget = memoryBudget;
+        this.partitions = newPartitions();
+    }
+
+    private SpillFile[] newPartitions() throws IOException {
+        SpillFile[] files = new SpillFile[GroupTable.PARTITIONS];
+        try {
+            for (int p = 0; p < files.length; p++) {
+                files[p] = new SpillFile(partialDesc);
+            }
+        } catch (IOException e) {
+            close(files);
+            throw e;
+        }
+        return files;
+    }
+
+    /**
+     * Write all groups of the table to their partitions. The caller starts
+     * over with an empty table.
+     */
+    void spill(GroupTable groups) throws IOException {
+        spill(groups, 0, partitions);
+    }
+
+    private void spill(GroupTable groups, int level, SpillFile[] files) throws IOException {
+        for (int g = 0; g < groups.size(); g++) {
+            files[groups.partition(g, level)].add(groups.partialTuple(g, partialDesc));
+        }
+    }
+
+    /**
+     * @return the result tuples of all spilled groups
+     */
+    OpIterator iterator() {
+        return new ResultIterator();
+    }
+
+    /**
+     * Delete the spill files.
+     */
+    void close() {
+        close(partitions);
+    }
+
+    private static void close(SpillFile[] files) {
+        for (SpillFile f : files) {
+            if (f != null) {
+                f.close();
+            }
+        }
+    }
+
+    private class ResultIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private Deque<Partition> todo;
+        // partitions split off while merging, deleted once merged
+        private final List<SpillFile> derived = new ArrayList<>();
+        private Iterator<Tuple> current;
+
+        @Override
+        public void open() {
+            todo = new ArrayDeque<>();
+            for (SpillFile f : partitions) {
+                todo.add(new Partition(f, 0, false));
+            }
+            current = Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean hasNext() throws DbException {
+            if (todo == null) {
+                throw new IllegalStateException("iterator is not open");
+            }
+            while (!current.hasNext()) {
+                if (todo.isEmpty()) {
+                    return false;
+                }
+                current = merge(todo.poll());
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        /**
+         * Merge the partial tuples of a partition, or split it again if it
+         * does not fit.
+         *
+         * @return the results of the partition; empty if it was split
+         */
+        private Iterator<Tuple> merge(Partition part) throws DbException {
+            if (part.file.numTuples() == 0) {
+                return Collections.emptyIterator();
+            }
+            try {
+                GroupTable groups = new GroupTable(keyType);
+                SpillFile[] split = null;
+                for (Iterator<Tuple> it = part.file.iterator(); it.hasNext(); ) {
+                    groups.mergePartial(it.next());
+                    if (groups.memoryUsage() > memoryBudget && part.level < GroupTable.MAX_PARTITION_LEVEL) {
+                        if (split == null) {
+                            split = newPartitions();
+                            Collections.addAll(derived, split);
+                        }
+                        spill(groups, part.level + 1, split);
+                        groups = new GroupTable(keyType);
+                    }
+                }
+                if (part.derived) {
+                    part.file.close();
+                    derived.remove(part.file);
+                }
+                if (split == null) {
+                    return groups.results(resultDesc, op).iterator();
+                }
+                spill(groups, part.level + 1, split);
+                for (int p = split.length - 1; p >= 0; p--) {
+                    todo.addFirst(new Partition(split[p], part.level + 1, true));
+                }
+                return Collections.emptyIterator();
+            } catch (IOException | RuntimeException e) {
+                throw new DbException("could not merge spilled groups: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void rewind() {
+            close();
+            open();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return resultDesc;
+        }
+
+        @Override
+        public void close() {
+            for (SpillFile f : derived) {
+                f.close();
+            }
+            derived.clear();
+            todo = null;
+            current = Collections.emptyIterator();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The tuples of a child in sorted order, sorted within a memory budget.
+ * <p>
+ * {@link #open()} reads the whole child. As long as its tuples fit in the
+ * budget they are sorted in memory; otherwise every budget's worth of tuples
+ * is sorted and written out as a run to a {@link SpillFile}, and the runs are
+ * merged while the tuples are read. The merge reads one page of each run at a
+ * time, so it merges at most a budget's worth of pages at once; if there are
+ * more runs than that, consecutive runs are first merged into longer ones.
+ * Each merge picks the next tuple with a loser tree, which takes one
+ * comparison per level of the tree. The sort is stable. A rewind starts the
+ * last merge over without reading the child again.
+ * <p>
+ * A sort that is rewound often, such as the inner input of a band join,
+ * merges its runs all the way down to a single run, so that a rewind reads
+ * one page instead of the first page of every run.
+ */
+class ExternalSort implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    // estimated heap overhead of a buffered tuple, on top of its field bytes
+    private static final int TUPLE_OVERHEAD = 64;
+
+    // the most runs merged at once, whatever the budget; each has an open file
+    private static final int MAX_FAN_IN = 128;
+
+    /**
+     * A tournament over the runs in which each internal node keeps the loser
+     * of the match played there, and the overall winner, the run with the
+     * smallest next tuple, is kept apart. Once the winner's tuple is taken,
+     * only the matches on the path from its leaf to the root are replayed.
+     * Exhausted runs lose every match; equal tuples are won by the earlier
+     * run, which keeps the merge stable.
+     */
+    private static class LoserTree {
+        private final Comparator<Tuple> comparator;
+        private final List<Iterator<Tuple>> rests;
+        // the next tuple of each run, or null when the run is exhausted
+        private final Tuple[] heads;
+        // tree[0] is the winner; tree[1 .. k-1] are the losers of the internal nodes,
+        // whose children are 2n and 2n + 1, with leaf i at k + i
+        private final int[] tree;
+
+        LoserTree(Comparator<Tuple> comparator, List<Iterator<Tuple>> rests) {
+            this.comparator = comparator;
+            this.rests = rests;
+            int k = rests.size();
+            heads = new Tuple[k];
+            for (int i = 0; i < k; i++) {
+                heads[i] = rests.get(i).hasNext() ? rests.get(i).next() : null;
+            }
+            tree = new int[Math.max(1, k)];
+            tree[0] = k == 0 ? -1 : play(1);
+        }
+
+        /**
+         * Play the matches of the subtree under a node.
+         *
+         * @return the winner of the subtree
+         */
+        private int play(int node) {
+            int k = heads.length;
+            if (node >= k) {
+                return node - k;
+            }
+            int a = play(2 * node);
+            int b = play(2 * node + 1);
+            if (beats(a, b)) {
+                tree[node] = b;
+                return a;
+            }
+            tree[node] = a;
+            return b;
+        }
+
+        private boolean beats(int a, int b) {
+            if (heads[a] == null) {
+                return false;
+            }
+            if (heads[b] == null) {
+                return true;
+            }
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        boolean hasNext() {
+            return tree[0] >= 0 && heads[tree[0]] != null;
+        }
+
+        Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int winner = tree[0];
+            Tuple t = heads[winner];
+            Iterator<Tuple> rest = rests.get(winner);
+            heads[winner] = rest.hasNext() ? rest.next() : null;
+            for (int node = (winner + heads.length) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+            return t;
+        }
+    }
+
+    private final OpIterator child;
+    private final Comparator<Tuple> comparator;
+    private final long memoryBudget;
+    private final boolean oneRun;
+
+    // the sorted tuples, if they fit in memory
+    private transient List<Tuple> sorted;
+    private transient List<SpillFile> runs;
+    private transient Iterator<Tuple> it;
+    private transient LoserTree merge;
+
+    /**
+     * @param child        the tuples to sort
+     * @param comparator   the order to sort them in
+     * @param memoryBudget the most memory, in bytes, the tuples held in
+     *                     memory may take
+     */
+    ExternalSort(OpIterator child, Comparator<Tuple> comparator, long memoryBudget) {
+        this(child, comparator, memoryBudget, false);
+    }
+
+    /**
+     * @param oneRun true to merge the runs into one before the tuples are
+     *               read, for a sort that is rewound often
+     * @see #ExternalSort(OpIterator, Comparator, long)
+     */
+    ExternalSort(OpIterator child, Comparator<Tuple> comparator, long memoryBudget, boolean oneRun) {
+        this.child = child;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.oneRun = oneRun;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        close();
+        long tupleBytes = child.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+        List<Tuple> buffer = new ArrayList<>();
+        runs = new ArrayList<>();
+        try {
+            child.open();
+            try {
+                long bytes = 0;
+                while (child.hasNext()) {
+                    buffer.add(child.next());
+                    bytes += tupleBytes;
+                    if (bytes > memoryBudget) {
+                        writeRun(buffer);
+                        bytes = 0;
+                    }
+                }
+            } finally {
+                child.close();
+            }
+            if (runs.isEmpty()) {
+                buffer.sort(comparator);
+                sorted = buffer;
+            } else {
+                writeRun(buffer);
+                buffer = null;
+                mergeRuns(oneRun ? 1 : fanIn());
+            }
+            start();
+        } catch (IOException e) {
+            close();
+            throw new DbException("could not sort: " + e.getMessage());
+        }
+    }
+
+    private void writeRun(List<Tuple> buffer) throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(comparator);
+        SpillFile run = new SpillFile(child.getTupleDesc());
+        runs.add(run);
+        for (Tuple t : buffer) {
+            run.add(t);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the most runs to merge at once: one page of each must fit in
+     *         the budget
+     */
+    private int fanIn() {
+        long pages = memoryBudget / BufferPool.getPageSize();
+        return (int) Math.max(2, Math.min(MAX_FAN_IN, pages));
+    }
+
+    /**
+     * Merge groups of consecutive runs into single runs until there are at
+     * most maxRuns left.
+     */
+    private void mergeRuns(int maxRuns) throws IOException {
+        int fanIn = fanIn();
+        while (runs.size() > maxRuns) {
+            List<SpillFile> merged = new ArrayList<>();
+            try {
+                for (int from = 0; from < runs.size(); from += fanIn) {
+                    List<SpillFile> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    SpillFile run = new SpillFile(child.getTupleDesc());
+                    merged.add(run);
+                    LoserTree tree = new LoserTree(comparator, iterators(group));
+                    while (tree.hasNext()) {
+                        run.add(tree.next());
+                    }
+                    for (SpillFile f : group) {
+                        f.close();
+                    }
+                }
+            } catch (IOException e) {
+                // the runs not merged yet are still in runs, and are closed with it
+                for (SpillFile f : merged) {
+                    f.close();
+                }
+                throw e;
+            }
+            runs = merged;
+        }
+    }
+
+    private static List<Iterator<Tuple>> iterators(List<SpillFile> runs) throws IOException {
+        List<Iterator<Tuple>> its = new ArrayList<>(runs.size());
+        for (SpillFile run : runs) {
+            its.add(run.iterator());
+        }
+        return its;
+    }
+
+    /**
+     * Position the iterator on the first tuple.
+     */
+    private void start() throws IOException {
+        if (sorted != null) {
+            it = sorted.iterator();
+            return;
+        }
+        merge = new LoserTree(comparator, iterators(runs));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (it != null) {
+            return it.hasNext();
+        }
+        if (merge == null) {
+            throw new IllegalStateException("sort is not open");
+        }
+        return merge.hasNext();
+    }
+
+    @Override
+    public Tuple next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (it != null) {
+            return it.next();
+        }
+        return merge.next();
+    }
+
+    @Override
+    public void rewind() throws DbException {
+        if (sorted == null && runs == null) {
+            throw new IllegalStateException("sort is not open");
+        }
+        try {
+            start();
+        } catch (IOException e) {
+            throw new DbException("could not sort: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public void close() {
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.close();
+            }
+        }
+        runs = null;
+        sorted = null;
+        it = null;
+        merge = null;
+    }
+}
@@ -0,0 +1,404 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash table of aggregation groups, shared by {@link IntegerAggregator} and
+ * {@link StringAggregator}.
+ * <p>
+ * Groups are numbered densely in the order they are first seen, and all
+ * per-group state lives in parallel primitive arrays indexed by that number:
+ * the key (an {@code int}, or a {@code String} with its cached hash) and the
+ * accumulators count, sum, min and max. Sums are kept as {@code long}, so an
+ * AVG over many large values does not overflow. The lookup index is an
+ * open-addressing table with linear probing that maps a key's hash to its
+ * group number, so an update never allocates or boxes anything.
+ * <p>
+ * Without grouping there is exactly one group, number 0.
+ * <p>
+ * The state of a group can be written out as a partial-aggregate tuple
+ * ({@link #partialTupleDesc}) and merged back into another table, which is
+ * how {@link Aggregate} spills groups to disk when it runs out of memory.
+ */
+class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    static final int PARTITIONS = 16;
+    static final int MAX_PARTITION_LEVEL = 3;
+
+    // estimated heap footprint of the per-group arrays and index, and of a String key
+    private static final int BYTES_PER_GROUP = 4 + 4 + 8 + 8 + 4 + 4 + 2 * 4;
+    private static final int BYTES_PER_STRING = 56;
+
+    /**
+     * the type of the group key, or null without grouping
+     */
+    private final Type keyType;
+
+    // index: group number + 1 per bucket, 0 for an empty bucket
+    private int[] buckets;
+    private int size;
+
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int[] hashes;
+    private long[] counts;
+    private long[] sums;
+    private int[] mins;
+    private int[] maxs;
+    private long stringBytes;
+
+    /**
+     * @param keyType the type of the group-by field, or null if there is no
+     *                grouping
+     */
+    GroupTable(Type keyType) {
+        this.keyType = keyType;
+        this.buckets = new int[INITIAL_CAPACITY * 2];
+        if (keyType == Type.INT_TYPE) {
+            intKeys = new int[INITIAL_CAPACITY];
+        } else if (keyType == Type.STRING_TYPE) {
+            stringKeys = new String[INITIAL_CAPACITY];
+        }
+        hashes = new int[INITIAL_CAPACITY];
+        counts = new long[INITIAL_CAPACITY];
+        sums = new long[INITIAL_CAPACITY];
+        mins = new int[INITIAL_CAPACITY];
+        maxs = new int[INITIAL_CAPACITY];
+        if (keyType == null) {
+            newGroup(0);
+        }
+    }
+
+    /**
+     * @return the number of groups
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return an estimate of the heap used by this table, in bytes
+     */
+    long memoryUsage() {
+        return (long) counts.length * BYTES_PER_GROUP + stringBytes;
+    }
+
+    /**
+     * Find the group of the given key, creating it if it is new.
+     *
+     * @param key the group-by field of a tuple; ignored without grouping
+     * @return the group number
+     */
+    int group(Field key) {
+        if (keyType == null) {
+            return 0;
+        }
+        if (keyType == Type.INT_TYPE) {
+            return group(((IntField) key).getValue());
+        }
+        return group(((StringField) key).getValue());
+    }
+
+    int group(int key) {
+        ensureIndexCapacity();
+        int h = mix(key);
+        int mask = buckets.length - 1;
+        for (int b = h & mask; ; b = (b + 1) & mask) {
+            int g = buckets[b] - 1;
+            if (g < 0) {
+                g = newGroup(h);
+                intKeys[g] = key;
+                buckets[b] = g + 1;
+                return g;
+            }
+            if (intKeys[g] == key) {
+                return g;
+            }
+        }
+    }
+
+    int group(String key) {
+        ensureIndexCapacity();
+        int h = mix(key.hashCode());
+        int mask = buckets.length - 1;
+        for (int b = h & mask; ; b = (b + 1) & mask) {
+            int g = buckets[b] - 1;
+            if (g < 0) {
+                g = newGroup(h);
+                stringKeys[g] = key;
+                stringBytes += BYTES_PER_STRING + 2L * key.length();
+                buckets[b] = g + 1;
+                return g;
+            }
+            if (hashes[g] == h && stringKeys[g].equals(key)) {
+                return g;
+            }
+        }
+    }
+
+    /**
+     * Add one value to a group.
+     */
+    void add(int g, int value) {
+        if (counts[g] == 0 || value < mins[g]) {
+            mins[g] = value;
+        }
+        if (counts[g] == 0 || value > maxs[g]) {
+            maxs[g] = value;
+        }
+        counts[g]++;
+        sums[g] += value;
+    }
+
+    /**
+     * Count one value of a group, for aggregates over non-integer fields.
+     */
+    void addCount(int g) {
+        counts[g]++;
+    }
+
+    /**
+     * Combine the partial state of a group, computed elsewhere over other
+     * tuples, into a group of this table.
+     */
+    void merge(int g, long count, long sum, int min, int max) {
+        if (count == 0) {
+            return;
+        }
+        if (counts[g] == 0 || min < mins[g]) {
+            mins[g] = min;
+        }
+        if (counts[g] == 0 || max > maxs[g]) {
+            maxs[g] = max;
+        }
+        counts[g] += count;
+        sums[g] += sum;
+    }
+
+    /**
+     * Combine every group of another table, computed over other tuples, into
+     * this one.
+     */
+    void mergeAll(GroupTable other) {
+        for (int g = 0; g < other.size; g++) {
+            int into;
+            if (keyType == null) {
+                into = 0;
+            } else if (keyType == Type.INT_TYPE) {
+                into = group(other.intKeys[g]);
+            } else {
+                into = group(other.stringKeys[g]);
+            }
+            merge(into, other.counts[g], other.sums[g], other.mins[g], other.maxs[g]);
+        }
+    }
+
+    /**
+     * @return the schema of the partial-aggregate tuples of a table with
+     *         the given key type: the key (if grouping), then count and sum
+     *         as two ints each (high word first), then min and max
+     */
+    static TupleDesc partialTupleDesc(Type keyType) {
+        Type[] state = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE,
+                Type.INT_TYPE, Type.INT_TYPE};
+        if (keyType == null) {
+            return new TupleDesc(state);
+        }
+        Type[] types = new Type[state.length + 1];
+        types[0] = keyType;
+        System.arraycopy(state, 0, types, 1, state.length);
+        return new TupleDesc(types);
+    }
+
+    /**
+     * @param td the schema returned by {@link #partialTupleDesc}
+     * @return the state of a group as a partial-aggregate tuple
+     */
+    Tuple partialTuple(int g, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        int i = 0;
+        if (keyType != null) {
+            t.setField(i++, key(g));
+        }
+        t.setField(i++, new IntField((int) (counts[g] >>> 32)));
+        t.setField(i++, new IntField((int) counts[g]));
+        t.setField(i++, new IntField((int) (sums[g] >>> 32)));
+        t.setField(i++, new IntField((int) sums[g]));
+        t.setField(i++, new IntField(mins[g]));
+        t.setField(i, new IntField(maxs[g]));
+        return t;
+    }
+
+    /**
+     * Merge a partial-aggregate tuple into the group of its key.
+     */
+    void mergePartial(Tuple t) {
+        int i = 0;
+        int g = keyType == null ? 0 : group(t.getField(i++));
+        long count = toLong(t.getField(i++), t.getField(i++));
+        long sum = toLong(t.getField(i++), t.getField(i++));
+        merge(g, count, sum, ((IntField) t.getField(i++)).getValue(), ((IntField) t.getField(i)).getValue());
+    }
+
+    private static long toLong(Field hi, Field lo) {
+        return ((long) ((IntField) hi).getValue() << 32) | (((IntField) lo).getValue() & 0xffffffffL);
+    }
+
+    /**
+     * Assign a group to one of 16 partitions. Each level uses different
+     * bits of the key's hash, taken from the top so that they do not decide
+     * the bucket of the key in the table a partition is merged into, and so
+     * that a partition can be split again.
+     *
+     * @param level 0 for the first split, up to {@link #MAX_PARTITION_LEVEL}
+     * @return the partition, in [0, {@link #PARTITIONS})
+     */
+    int partition(int g, int level) {
+        return (hashes[g] >>> (28 - 4 * level)) & (PARTITIONS - 1);
+    }
+
+    long count(int g) {
+        return counts[g];
+    }
+
+    long sum(int g) {
+        return sums[g];
+    }
+
+    int min(int g) {
+        return mins[g];
+    }
+
+    int max(int g) {
+        return maxs[g];
+    }
+
+    /**
+     * @return the key of a group as a field of the group-by type
+     */
+    Field key(int g) {
+        if (keyType == Type.INT_TYPE) {
+            return new IntField(intKeys[g]);
+        }
+        return new StringField(stringKeys[g], Type.STRING_LEN);
+    }
+
+    /**
+     * @return the value of the given aggregate over a group; the sum for
+     *         SUM_COUNT, whose count is a second result field
+     */
+    Field result(int g, Aggregator.Op op) {
+        switch (op) {
+            case COUNT:
+                return new IntField((int) counts[g]);
+            case SUM:
+            case SUM_COUNT:
+                return new IntField((int) sums[g]);
+            case AVG:
+            case SC_AVG:
+                return new IntField((int) (sums[g] / counts[g]));
+            case MIN:
+                return new IntField(mins[g]);
+            case MAX:
+                return new IntField(maxs[g]);
+            default:
+                throw new IllegalArgumentException("unsupported operator " + op);
+        }
+    }
+
+    /**
+     * @param td the result schema: (aggregateVal) without grouping,
+     *           (groupVal, aggregateVal) otherwise, followed by countVal
+     *           for SUM_COUNT
+     * @return the result of the given aggregate for each group, in the order
+     *         the groups were first seen
+     */
+    List<Tuple> results(TupleDesc td, Aggregator.Op op) {
+        List<Tuple> tuples = new ArrayList<>(size);
+        for (int g = 0; g < size; g++) {
+            if (counts[g] == 0) {
+                // no grouping and no input
+                continue;
+            }
+            Tuple t = new Tuple(td);
+            int i = 0;
+            if (keyType != null) {
+                t.setField(i++, key(g));
+            }
+            t.setField(i++, result(g, op));
+            if (op == Aggregator.Op.SUM_COUNT) {
+                t.setField(i, new IntField((int) counts[g]));
+            }
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    /**
+     * @see #results
+     */
+    TupleIterator iterator(TupleDesc td, Aggregator.Op op) {
+        return new TupleIterator(td, results(td, op));
+    }
+
+    private int newGroup(int hash) {
+        if (size == counts.length) {
+            int cap = size * 2;
+            if (intKeys != null) {
+                intKeys = Arrays.copyOf(intKeys, cap);
+            }
+            if (stringKeys != null) {
+                stringKeys = Arrays.copyOf(stringKeys, cap);
+            }
+            hashes = Arrays.copyOf(hashes, cap);
+            counts = Arrays.copyOf(counts, cap);
+            sums = Arrays.copyOf(sums, cap);
+            mins = Arrays.copyOf(mins, cap);
+            maxs = Arrays.copyOf(maxs, cap);
+        }
+        int g = size++;
+        hashes[g] = hash;
+        return g;
+    }
+
+    /**
+     * Keep the index at most half full, counting a group about to be added.
+     */
+    private void ensureIndexCapacity() {
+        if ((size + 1) * 2 <= buckets.length) {
+            return;
+        }
+        buckets = new int[buckets.length * 2];
+        int mask = buckets.length - 1;
+        for (int g = 0; g < size; g++) {
+            int b = hashes[g] & mask;
+            while (buckets[b] != 0) {
+                b = (b + 1) & mask;
+            }
+            buckets[b] = g + 1;
+        }
+    }
+
+    /**
+     * Spread the bits of a hash so that sequential keys do not cluster.
+     */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
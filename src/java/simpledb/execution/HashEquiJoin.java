@@ -1,21 +1,50 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a hybrid hash join. The left child is the build side: it is read
+ * into a hash table on the join field, and the right child is then probed
+ * against it in one pass. When the build side does not fit in the memory
+ * budget, both sides are split into {@link #PARTITIONS} partitions by the
+ * hash of the join field. As many partitions as fit stay in the hash table
+ * and are joined while the right child streams past; the tuples of the other
+ * partitions, from both sides, are written to temporary files, and each such
+ * partition is then joined on its own, reading its two files once each. A
+ * partition whose build side alone is over the budget is joined in chunks
+ * of the budget, re-reading its (smaller) probe file once per chunk.
  */
 public class HashEquiJoin extends Operator {
 
+    /**
+     * Default memory budget for the hash table, in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    /**
+     * The number of partitions the inputs are split into when the build
+     * side does not fit.
+     */
+    public static final int PARTITIONS = 16;
+
+    // estimated heap overhead of a tuple in the hash table, on top of its field bytes
+    private static final int TUPLE_OVERHEAD = 64;
+
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
+    private final long memoryBudget;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
@@ -28,9 +57,21 @@ public class HashEquiJoin extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryBudget the most memory, in bytes, the hash table may take
+     *                     before the inputs are partitioned to disk
+     * @see #HashEquiJoin(JoinPredicate, OpIterator, OpIterator)
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, long memoryBudget) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryBudget = memoryBudget;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -50,28 +91,160 @@ public class HashEquiJoin extends Operator {
         return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
 
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    final Map<Field, List<Tuple>> map = new HashMap<>();
+    transient private long mapBytes;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    // null until the build side overflows; then whether each partition is in map
+    transient private boolean[] resident;
+    // build and probe tuples of the partitions that are not in map
+    transient private SpillFile[] buildFiles;
+    transient private SpillFile[] probeFiles;
+    // the spilled partition being joined, and the next one
+    transient private int partition;
+    transient private int nextPartition;
+    // build tuples of the current partition not yet loaded into map
+    transient private Iterator<Tuple> buildRest;
+    // the probe tuples being read: null while reading child2
+    transient private Iterator<Tuple> probe;
+
+    private long tupleBytes() {
+        return child1.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+    }
+
+    private static int partitionOf(Field key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h >>> 28;
+    }
+
+    private void put(Tuple t) {
+        map.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+        mapBytes += tupleBytes();
+    }
+
+    /**
+     * Read the whole build side, partitioning it if it does not fit.
+     */
+    private void build() throws DbException, TransactionAbortedException, IOException {
         while (child1.hasNext()) {
             t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            if (resident == null) {
+                put(t1);
+                if (mapBytes > memoryBudget) {
+                    resident = new boolean[PARTITIONS];
+                    Arrays.fill(resident, true);
+                    buildFiles = new SpillFile[PARTITIONS];
+                    probeFiles = new SpillFile[PARTITIONS];
+                    evict();
+                }
+            } else {
+                int p = partitionOf(t1.getField(pred.getField1()));
+                if (resident[p]) {
+                    put(t1);
+                    if (mapBytes > memoryBudget) {
+                        evict();
+                    }
+                } else {
+                    buildFiles[p].add(t1);
+                }
+            }
+        }
+        t1 = null;
+    }
+
+    /**
+     * Move resident partitions to disk, highest first, until the hash table
+     * is back within the budget.
+     */
+    private void evict() throws IOException {
+        for (int p = PARTITIONS - 1; p >= 0 && mapBytes > memoryBudget; p--) {
+            if (!resident[p]) {
+                continue;
+            }
+            resident[p] = false;
+            buildFiles[p] = new SpillFile(child1.getTupleDesc());
+            probeFiles[p] = new SpillFile(child2.getTupleDesc());
+            for (Iterator<Map.Entry<Field, List<Tuple>>> it = map.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Field, List<Tuple>> e = it.next();
+                if (partitionOf(e.getKey()) == p) {
+                    for (Tuple t : e.getValue()) {
+                        buildFiles[p].add(t);
+                    }
+                    mapBytes -= e.getValue().size() * tupleBytes();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Move on to the next chunk of the current spilled partition, or to the
+     * next spilled partition.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextBatch() throws IOException {
+        if (resident == null) {
+            return false;
+        }
+        map.clear();
+        mapBytes = 0;
+        if (buildRest == null || !buildRest.hasNext()) {
+            buildRest = null;
+            while (nextPartition < PARTITIONS && buildRest == null) {
+                int p = nextPartition++;
+                if (!resident[p] && buildFiles[p].numTuples() > 0 && probeFiles[p].numTuples() > 0) {
+                    partition = p;
+                    buildRest = buildFiles[p].iterator();
+                }
+            }
+            if (buildRest == null) {
+                return false;
+            }
+        }
+        while (buildRest.hasNext() && mapBytes <= memoryBudget) {
+            put(buildRest.next());
         }
-        return cnt > 0;
+        probe = probeFiles[partition].iterator();
+        return true;
+    }
 
+    private void reset() {
+        map.clear();
+        mapBytes = 0;
+        closeFiles(buildFiles);
+        closeFiles(probeFiles);
+        resident = null;
+        buildFiles = null;
+        probeFiles = null;
+        nextPartition = 0;
+        buildRest = null;
+        probe = null;
+        t1 = null;
+        t2 = null;
+        listIt = null;
+    }
+
+    private static void closeFiles(SpillFile[] files) {
+        if (files != null) {
+            for (SpillFile f : files) {
+                if (f != null) {
+                    f.close();
+                }
+            }
+        }
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        reset();
+        try {
+            build();
+        } catch (IOException e) {
+            reset();
+            throw new DbException("could not partition join input: " + e.getMessage());
+        }
         super.open();
     }
 
@@ -79,15 +252,27 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1 = null;
-        this.t2 = null;
-        this.listIt = null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        listIt = null;
+        t2 = null;
+        if (resident == null) {
+            // everything is in the hash table: only the probe side starts over
+            child2.rewind();
+            return;
+        }
+        // the hash table now holds some spilled partition: partition again
+        reset();
         child1.rewind();
         child2.rewind();
+        try {
+            build();
+        } catch (IOException e) {
+            reset();
+            throw new DbException("could not partition join input: " + e.getMessage());
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -112,47 +297,40 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() {
         t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
+        return Tuple.merge(comboTD, t1, t2);
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+        try {
+            while (true) {
+                if (listIt != null && listIt.hasNext()) {
+                    return processList();
+                }
+                listIt = null;
+                if (probe == null ? !child2.hasNext() : !probe.hasNext()) {
+                    // this pass over the probe side is done
+                    if (!nextBatch()) {
+                        return null;
+                    }
+                    continue;
+                }
+                t2 = probe == null ? child2.next() : probe.next();
+                Field key = t2.getField(pred.getField2());
+                if (probe == null && resident != null) {
+                    int p = partitionOf(key);
+                    if (!resident[p]) {
+                        probeFiles[p].add(t2);
+                        continue;
+                    }
+                }
+                List<Tuple> l = map.get(key);
+                if (l != null) {
+                    listIt = l.iterator();
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not partition join input: " + e.getMessage());
         }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
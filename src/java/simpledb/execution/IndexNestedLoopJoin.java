@@ -0,0 +1,254 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Nested-loop join that looks up the inner tuples in a B+ tree instead of
+ * scanning them.
+ * <p>
+ * The inner (right) child must be a {@link SeqScan} of a {@link BTreeFile}
+ * keyed on the join field, optionally under {@link Filter}s. The scan itself
+ * is never run: for each outer tuple the operator searches the tree with an
+ * {@link IndexPredicate} on the outer key, and applies the filters' predicates
+ * to the tuples found.
+ * <p>
+ * The outer tuples are read in batches of {@link #BATCH_SIZE} and each batch
+ * is sorted on the join key before it is probed, so that consecutive searches
+ * go down the same path of the tree and mostly hit leaf pages that are still
+ * in the buffer pool; an outer key equal to the previous one reuses its
+ * search. The result is ordered by join key within each batch.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    /**
+     * The number of outer tuples sorted and probed together.
+     */
+    public static final int BATCH_SIZE = 1024;
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    // the index, the transaction and the filters of the inner child, found when opened
+    transient private BTreeFile index;
+    transient private TransactionId tid;
+    transient private List<Predicate> innerFilters;
+    // the current batch of sorted outer tuples
+    private final List<Tuple> batch = new ArrayList<>();
+    transient private int batchPos;
+    // the current outer tuple, and the search for its inner tuples
+    transient private Tuple outer;
+    transient private DbFileIterator probe;
+    transient private Field probeKey;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p      The predicate to use to join the children; anything but
+     *               LIKE and NOT_EQUALS
+     * @param child1 Iterator for the left (outer) relation to join
+     * @param child2 Iterator for the right (inner) relation to join; see
+     *               {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (probeOp(p.getOperator()) == null) {
+            throw new IllegalArgumentException("index join does not support " + p.getOperator());
+        }
+        if (!canProbe(child2, p.getField2())) {
+            throw new IllegalArgumentException("inner input is not a scan of a B+ tree on field "
+                    + p.getField2());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return whether an iterator is a (possibly filtered) sequential scan of
+     *         a B+ tree keyed on the given field, so that an index join can
+     *         search the tree instead of running the scan
+     */
+    public static boolean canProbe(OpIterator inner, int field) {
+        return scanOf(inner) != null && indexOf(scanOf(inner), field) != null;
+    }
+
+    private static SeqScan scanOf(OpIterator it) {
+        while (it instanceof Filter) {
+            it = ((Filter) it).getChildren()[0];
+        }
+        return it instanceof SeqScan ? (SeqScan) it : null;
+    }
+
+    private static BTreeFile indexOf(SeqScan scan, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (f instanceof BTreeFile && ((BTreeFile) f).keyField() == field) {
+            return (BTreeFile) f;
+        }
+        return null;
+    }
+
+    /**
+     * @return the operator to search the inner key with, such that
+     *         {@code inner op outer} holds exactly when {@code outer joinOp inner}
+     *         does, or null if the index cannot be searched for it
+     */
+    private static Predicate.Op probeOp(Predicate.Op joinOp) {
+        switch (joinOp) {
+            case EQUALS:
+                return Predicate.Op.EQUALS;
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        SeqScan scan = scanOf(child2);
+        index = scan == null ? null : indexOf(scan, pred.getField2());
+        if (index == null) {
+            throw new DbException("inner input is no longer a scan of a B+ tree");
+        }
+        tid = scan.getTransactionId();
+        innerFilters = new ArrayList<>();
+        for (OpIterator it = child2; it instanceof Filter; it = ((Filter) it).getChildren()[0]) {
+            innerFilters.add(((Filter) it).getPredicate());
+        }
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        closeProbe();
+        batch.clear();
+        batchPos = 0;
+        outer = null;
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            probe.close();
+        }
+        probe = null;
+        probeKey = null;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of the joining tuples from
+     * the left and right relation, like those of {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null) {
+                while (probe.hasNext()) {
+                    Tuple inner = probe.next();
+                    if (passesFilters(inner)) {
+                        return Tuple.merge(comboTD, outer, inner);
+                    }
+                }
+                outer = null;
+            }
+            if (batchPos == batch.size() && !fillBatch()) {
+                return null;
+            }
+            outer = batch.get(batchPos++);
+            Field key = outer.getField(pred.getField1());
+            if (probeKey != null && key.compare(Predicate.Op.EQUALS, probeKey)) {
+                probe.rewind();
+            } else {
+                closeProbe();
+                probe = index.indexIterator(tid, new IndexPredicate(probeOp(pred.getOperator()), key));
+                probe.open();
+                probeKey = key;
+            }
+        }
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it on the join key.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean fillBatch() throws TransactionAbortedException, DbException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        batch.sort(new TupleComparator(pred.getField1(), true));
+        return !batch.isEmpty();
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate p : innerFilters) {
+            if (!p.filter(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
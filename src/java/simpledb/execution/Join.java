@@ -1,6 +1,8 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -9,15 +11,37 @@ import java.util.NoSuchElementException;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: the outer (left) child is read a block of
+ * {@link #getBlockPages()} pages' worth of tuples at a time, and the inner
+ * (right) child is scanned once per block rather than once per outer tuple.
+ * Each inner tuple is compared with the join keys of the whole block, which
+ * are kept in an array. The result is ordered by block, then by inner tuple.
  */
 public class Join extends Operator {
 
+    /**
+     * Default number of pages' worth of outer tuples per block.
+     */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
     private static final long serialVersionUID = 1L;
     private JoinPredicate p;
     private OpIterator child1;
     private OpIterator child2;
-    private Tuple temp = null;
     private TupleDesc newTupleDesc = null;
+    private int blockPages = DEFAULT_BLOCK_PAGES;
+
+    // the current block of outer tuples and their join keys
+    transient private Tuple[] block;
+    transient private Field[] blockKeys;
+    transient private int blockSize;
+    // the current inner tuple, its join key, and the next outer tuple to compare it with
+    transient private Tuple inner;
+    transient private Field innerKey;
+    transient private int blockPos;
+    // whether the inner child is at its start, so that the next block needs no rewind
+    transient private boolean innerAtStart;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -36,6 +60,23 @@ public class Join extends Operator {
         newTupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * @return the number of pages' worth of outer tuples joined per scan of
+     *         the inner child
+     */
+    public int getBlockPages() {
+        return blockPages;
+    }
+
+    /**
+     * @param blockPages the number of pages' worth of outer tuples to join
+     *                   per scan of the inner child; takes effect when the
+     *                   join is next opened
+     */
+    public void setBlockPages(int blockPages) {
+        this.blockPages = Math.max(1, blockPages);
+    }
+
     public JoinPredicate getJoinPredicate() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-13 11:29:16
@@ -78,15 +119,32 @@ public class Join extends Operator {
         // Done by Huangyihang in 2023-02-13 11:32:24
         this.child1.open();
         this.child2.open();
+        // 与HeapPage相同的算法估计一页能放多少外侧元组
+        int tuplesPerPage = Math.max(1, HeapPage.slotsPerPage(this.child1.getTupleDesc()));
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) tuplesPerPage * blockPages);
+        block = new Tuple[capacity];
+        blockKeys = new Field[capacity];
+        resetBlock();
+        innerAtStart = true;
         super.open();
     }
 
+    private void resetBlock() {
+        blockSize = 0;
+        blockPos = 0;
+        inner = null;
+        innerKey = null;
+    }
+
     public void close() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-13 11:35:38
         super.close();
         this.child1.close();
         this.child2.close();
+        block = null;
+        blockKeys = null;
+        resetBlock();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -94,7 +152,8 @@ public class Join extends Operator {
         // Done by Huangyihang in 2023-02-13 16:18:44
         this.child1.rewind();
         this.child2.rewind();
-
+        resetBlock();
+        innerAtStart = true;
     }
 
     /**
@@ -118,38 +177,52 @@ public class Join extends Operator {
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-13 16:47:09
-        // temp用于保存child1的元组，遍历完child2后置空，准备遍历下一个child1的元组
-        TupleDesc td1 = this.child1.getTupleDesc();
-        TupleDesc td2 = this.child2.getTupleDesc();
-        while (child1.hasNext() || temp != null) {
-            if (child1.hasNext() && temp == null) {
-                temp = child1.next();
-            }
-            while (child2.hasNext()) {
-                Tuple t2 = child2.next();
-                if (this.p.filter(temp, t2)) {
-                    Tuple newTuple = new Tuple(newTupleDesc);
-                    newTuple.setRecordId(temp.getRecordId());
-                    int i = 0;
-                    for (; i < td1.numFields(); i++) {
-                        newTuple.setField(i, temp.getField(i));
-                    }
-                    for (int j = 0; j < td2.numFields(); j++) {
-                        newTuple.setField(i + j, t2.getField(j));
+        // 每个外侧块只扫描一次内侧：取一个内侧元组，与块中所有外侧元组比较
+        Predicate.Op op = this.p.getOperator();
+        while (true) {
+            if (inner != null) {
+                while (blockPos < blockSize) {
+                    int i = blockPos++;
+                    if (blockKeys[i].compare(op, innerKey)) {
+                        return Tuple.merge(newTupleDesc, block[i], inner);
                     }
-                    // 遍历完t2后重置，t置空，准备遍历下一个
-                    if (!child2.hasNext()) {
-                        child2.rewind();
-                        temp = null;
-                    }
-                    return newTuple;
                 }
+                inner = null;
+            }
+            if (blockSize > 0 && child2.hasNext()) {
+                inner = child2.next();
+                innerKey = inner.getField(this.p.getField2());
+                blockPos = 0;
+                continue;
             }
-            // 重置 child2
+            // 内侧已扫描完（或还没有块）：读下一个外侧块
+            if (!fillBlock()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Read the next block of outer tuples, and rewind the inner child for it.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean fillBlock() throws TransactionAbortedException, DbException {
+        resetBlock();
+        while (blockSize < block.length && child1.hasNext()) {
+            Tuple t = child1.next();
+            block[blockSize] = t;
+            blockKeys[blockSize] = t.getField(this.p.getField1());
+            blockSize++;
+        }
+        if (blockSize == 0) {
+            return false;
+        }
+        if (!innerAtStart) {
             child2.rewind();
-            temp = null;
         }
-        return null;
+        innerAtStart = false;
+        return true;
     }
 
     @Override
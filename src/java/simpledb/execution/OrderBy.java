@@ -1,26 +1,36 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
-import java.util.*;
+import java.util.NoSuchElementException;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples may be ordered on several fields, each ascending or
+ * descending; ties on one field are broken by the next, and tuples equal on
+ * all of them keep the order of the child. The sort holds at most the
+ * memory budget of tuples; a larger input is sorted in runs that are
+ * written to temporary files and merged.
  */
 public class OrderBy extends Operator {
 
+    /**
+     * Default memory budget for the sort, in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] asc;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final long memoryBudget;
+    private transient ExternalSort sort;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -30,47 +40,95 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for each field, true if its sort order is
+     *                      ascending.
+     * @param child         the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryBudget the most memory, in bytes, the sort may hold
+     *                     before it writes sorted runs to disk
+     * @see #OrderBy(int[], boolean[], OpIterator)
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child, long memoryBudget) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order for each of at least one field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.memoryBudget = memoryBudget;
     }
 
+    /**
+     * @return true if the (first) sort field is in ascending order
+     */
     public boolean isASC() {
-        return this.asc;
+        return this.asc[0];
     }
 
+    /**
+     * @return the (first) sort field
+     */
     public int getOrderByField() {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
 
     public String getOrderFieldName() {
         return this.orderByFieldName;
     }
 
+    /**
+     * @return all the sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if it is in ascending order
+     */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // 在内存预算内排序，超出则分段写入临时文件后归并
+        sort = new ExternalSort(child, new TupleComparator(orderByFields, asc), memoryBudget);
+        sort.open();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sort != null) {
+            sort.close();
+        }
+        sort = null;
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        sort.rewind();
     }
 
     /**
@@ -81,8 +139,8 @@ public class OrderBy extends Operator {
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (sort != null && sort.hasNext()) {
+            return sort.next();
         } else
             return null;
     }
@@ -98,25 +156,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-
-}
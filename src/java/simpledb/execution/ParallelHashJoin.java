@@ -0,0 +1,462 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Equi-join on an integer field that uses several cores.
+ * <p>
+ * Both inputs are read into memory (a heap file scan is split by pages over
+ * the workers), and then radix-partitioned on the high bits of the hashed
+ * join key, so that each partition of the smaller side is small enough for
+ * its hash table to stay in cache. Each worker partitions its own share of
+ * the tuples in two passes, a histogram and a scatter into one array per
+ * side, so no synchronization is needed. The partitions are then joined
+ * independently: a worker takes the next partition, builds a chained hash
+ * table over the build side in two {@code int} arrays, and probes it with
+ * the other side, comparing primitive keys. Matches are kept as pairs of
+ * tuple indexes; the joined tuples are only assembled by {@link #fetchNext}.
+ * <p>
+ * The result is ordered by partition, then by probe tuple. Unlike
+ * {@link HashEquiJoin} this operator never spills, so the optimizer only
+ * picks it for inputs that fit in memory.
+ */
+public class ParallelHashJoin extends Operator {
+
+    /**
+     * A worker is only worth starting for at least this many pages of a scan.
+     */
+    public static final int MIN_PAGES_PER_WORKER = ParallelScan.MIN_PAGES_PER_WORKER;
+
+    // the same for tuples already in memory
+    private static final int MIN_TUPLES_PER_WORKER = 8192;
+
+    // build tuples per partition: its key, link and bucket arrays are about 48 KB
+    private static final int PARTITION_TUPLES = 4096;
+    private static final int MAX_RADIX_BITS = 14;
+
+    /**
+     * The tuples of one input, grouped by partition: the tuples of partition
+     * p are at [starts[p], starts[p + 1]), with their join keys alongside.
+     */
+    private static class Partitioned {
+        final Tuple[] tuples;
+        final int[] keys;
+        final int[] starts;
+
+        Partitioned(int size, int partitions) {
+            tuples = new Tuple[size];
+            keys = new int[size];
+            starts = new int[partitions + 1];
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    transient private Partitioned left, right;
+    // per partition: the matching (left index, right index) pairs, back to back
+    transient private int[][] matches;
+    transient private int partition;
+    transient private int match;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p      The predicate to use to join the children; must be
+     *               EQUALS on two INT_TYPE fields
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS
+                || child1.getTupleDesc().getFieldType(p.getField1()) != Type.INT_TYPE
+                || child2.getTupleDesc().getFieldType(p.getField2()) != Type.INT_TYPE) {
+            throw new IllegalArgumentException("parallel hash join needs an equality of int fields");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the most worker threads the join is split over; defaults to
+     *         the number of processors
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism the most worker threads to use; 1 joins on the
+     *                    calling thread only
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        List<List<Tuple>> in1 = load(child1);
+        List<List<Tuple>> in2 = load(child2);
+        int size1 = size(in1);
+        int size2 = size(in2);
+        boolean buildLeft = size1 <= size2;
+
+        // small enough partitions for the build side to stay in cache
+        int bits = ceilLog2((buildLeft ? size1 : size2) / PARTITION_TUPLES);
+        if (size1 + size2 >= 2 * MIN_TUPLES_PER_WORKER) {
+            // and a few per worker, so that skewed partitions even out
+            bits = Math.max(bits, ceilLog2(parallelism * 4));
+        }
+        bits = Math.min(bits, MAX_RADIX_BITS);
+
+        left = partition(in1, pred.getField1(), size1, bits);
+        right = partition(in2, pred.getField2(), size2, bits);
+        matches = join(buildLeft ? left : right, buildLeft ? right : left, buildLeft);
+        partition = 0;
+        match = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        left = null;
+        right = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the matches stay, only the cursor starts over
+        partition = 0;
+        match = 0;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of the joining tuples from
+     * the left and right relation, like those of {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (partition < matches.length && match >= matches[partition].length) {
+            partition++;
+            match = 0;
+        }
+        if (partition == matches.length) {
+            return null;
+        }
+        Tuple t1 = left.tuples[matches[partition][match++]];
+        Tuple t2 = right.tuples[matches[partition][match++]];
+        return Tuple.merge(comboTD, t1, t2);
+    }
+
+    /**
+     * Read all tuples of a child: over several workers if it is a scan of a
+     * large heap file, otherwise here, split into shares for the workers to
+     * partition.
+     *
+     * @return the tuples, as one list per worker
+     */
+    private List<List<Tuple>> load(OpIterator child) throws DbException, TransactionAbortedException {
+        int workers = ParallelScan.workers(child, parallelism);
+        if (workers > 1) {
+            SeqScan scan = (SeqScan) child;
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+            TransactionId tid = scan.getTransactionId();
+            int numPages = file.numPages();
+            List<List<Tuple>> shares = new ArrayList<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                int first = ParallelScan.firstPage(numPages, w, workers);
+                int end = ParallelScan.firstPage(numPages, w + 1, workers);
+                List<Tuple> share = new ArrayList<>();
+                shares.add(share);
+                tasks.add(() -> {
+                    DbFileIterator it = file.iterator(tid, first, end);
+                    try {
+                        it.open();
+                        while (it.hasNext()) {
+                            share.add(it.next());
+                        }
+                    } finally {
+                        it.close();
+                    }
+                    return null;
+                });
+            }
+            runAll(tasks);
+            return shares;
+        }
+
+        List<Tuple> all = new ArrayList<>();
+        child.open();
+        try {
+            while (child.hasNext()) {
+                all.add(child.next());
+            }
+        } finally {
+            child.close();
+        }
+        int shares = Math.max(1, Math.min(parallelism, all.size() / MIN_TUPLES_PER_WORKER));
+        List<List<Tuple>> res = new ArrayList<>(shares);
+        for (int w = 0; w < shares; w++) {
+            res.add(all.subList((int) ((long) all.size() * w / shares),
+                    (int) ((long) all.size() * (w + 1) / shares)));
+        }
+        return res;
+    }
+
+    /**
+     * Radix-partition one input on the top bits of its hashed join keys.
+     * Each worker counts how many of its tuples go to each partition, which
+     * gives every (partition, worker) pair its own range of the output; then
+     * each worker copies its tuples into its ranges.
+     */
+    private Partitioned partition(List<List<Tuple>> shares, int field, int size, int bits)
+            throws DbException, TransactionAbortedException {
+        int partitions = 1 << bits;
+        int[][] keys = new int[shares.size()][];
+        int[][] counts = new int[shares.size()][partitions];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int w = 0; w < shares.size(); w++) {
+            int worker = w;
+            tasks.add(() -> {
+                List<Tuple> share = shares.get(worker);
+                int[] k = new int[share.size()];
+                int[] c = counts[worker];
+                for (int i = 0; i < k.length; i++) {
+                    k[i] = ((IntField) share.get(i).getField(field)).getValue();
+                    c[radix(k[i], bits)]++;
+                }
+                keys[worker] = k;
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        Partitioned res = new Partitioned(size, partitions);
+        int[][] offsets = new int[shares.size()][partitions];
+        int pos = 0;
+        for (int p = 0; p < partitions; p++) {
+            res.starts[p] = pos;
+            for (int w = 0; w < shares.size(); w++) {
+                offsets[w][p] = pos;
+                pos += counts[w][p];
+            }
+        }
+        res.starts[partitions] = pos;
+
+        tasks.clear();
+        for (int w = 0; w < shares.size(); w++) {
+            int worker = w;
+            tasks.add(() -> {
+                List<Tuple> share = shares.get(worker);
+                int[] k = keys[worker];
+                int[] next = offsets[worker];
+                for (int i = 0; i < k.length; i++) {
+                    int at = next[radix(k[i], bits)]++;
+                    res.tuples[at] = share.get(i);
+                    res.keys[at] = k[i];
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+        return res;
+    }
+
+    /**
+     * Join the inputs partition by partition, each worker taking the next
+     * partition not yet joined.
+     *
+     * @param buildLeft whether build is the left input
+     * @return the (left, right) index pairs of the matches of each partition
+     */
+    private int[][] join(Partitioned build, Partitioned probe, boolean buildLeft)
+            throws DbException, TransactionAbortedException {
+        int partitions = build.starts.length - 1;
+        int[][] res = new int[partitions][];
+        AtomicInteger nextPartition = new AtomicInteger();
+        int workers = Math.max(1, Math.min(parallelism,
+                (build.keys.length + probe.keys.length) / MIN_TUPLES_PER_WORKER));
+        workers = Math.min(workers, partitions);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            tasks.add(() -> {
+                int[] buckets = new int[0];
+                int[] links = new int[0];
+                int[] out = new int[64];
+                for (int p = nextPartition.getAndIncrement(); p < partitions; p = nextPartition.getAndIncrement()) {
+                    int bs = build.starts[p], be = build.starts[p + 1];
+                    int ps = probe.starts[p], pe = probe.starts[p + 1];
+                    int n = 0;
+                    if (be > bs && pe > ps) {
+                        int cap = Integer.highestOneBit(Math.max(1, (be - bs) * 2 - 1)) << 1;
+                        if (buckets.length < cap) {
+                            buckets = new int[cap];
+                        } else {
+                            Arrays.fill(buckets, 0, cap, 0);
+                        }
+                        if (links.length < be - bs) {
+                            links = new int[be - bs];
+                        }
+                        int mask = cap - 1;
+                        // 倒序插入，使同一桶的链表按输入顺序排列
+                        for (int i = be - 1; i >= bs; i--) {
+                            int b = mix(build.keys[i]) & mask;
+                            links[i - bs] = buckets[b];
+                            buckets[b] = i - bs + 1;
+                        }
+                        for (int j = ps; j < pe; j++) {
+                            int key = probe.keys[j];
+                            for (int e = buckets[mix(key) & mask]; e != 0; e = links[e - 1]) {
+                                int i = bs + e - 1;
+                                if (build.keys[i] == key) {
+                                    if (n + 2 > out.length) {
+                                        out = Arrays.copyOf(out, out.length * 2);
+                                    }
+                                    out[n++] = buildLeft ? i : j;
+                                    out[n++] = buildLeft ? j : i;
+                                }
+                            }
+                        }
+                    }
+                    res[p] = Arrays.copyOf(out, n);
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+        return res;
+    }
+
+    /**
+     * Run the tasks on the worker pool, or here if there is only one, and
+     * wait for all of them: even after a failure, the others may still be
+     * reading pages of this transaction.
+     */
+    private static void runAll(List<Callable<Void>> tasks) throws DbException, TransactionAbortedException {
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DbException("parallel join failed: " + e);
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(ParallelScan.WORKERS.submit(task));
+        }
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<Void> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while joining");
+        }
+        if (failure instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) failure;
+        } else if (failure instanceof DbException) {
+            throw (DbException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new DbException("parallel join failed: " + failure);
+        }
+    }
+
+    private static int size(List<List<Tuple>> shares) {
+        int n = 0;
+        for (List<Tuple> share : shares) {
+            n += share.size();
+        }
+        return n;
+    }
+
+    /**
+     * @return the smallest b with 2^b >= n
+     */
+    private static int ceilLog2(int n) {
+        return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    /**
+     * @return the partition of a key: the top bits of its hash, so that the
+     *         low bits still spread the keys of a partition over its buckets
+     */
+    private static int radix(int key, int bits) {
+        return bits == 0 ? 0 : (key * 0x9E3779B9) >>> (32 - bits);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -0,0 +1,60 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * What the operators that read their input with several workers share:
+ * {@link Aggregate} and {@link ParallelHashJoin} split a scan of a large heap
+ * file into ranges of pages, one per worker, and run the workers on one
+ * executor.
+ */
+class ParallelScan {
+
+    /**
+     * A worker is only worth starting for at least this many pages.
+     */
+    static final int MIN_PAGES_PER_WORKER = 16;
+
+    /**
+     * Shared by all parallel operators; daemon threads, so that it never
+     * keeps the JVM alive.
+     */
+    static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "simpledb-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ParallelScan() {
+    }
+
+    /**
+     * @param parallelism the most workers the operator may use
+     * @return the number of workers to scan the child with, or 1 if the
+     *         child is not a scan of a heap file large enough to split
+     */
+    static int workers(OpIterator child, int parallelism) {
+        if (parallelism <= 1 || !(child instanceof SeqScan)) {
+            return 1;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(((SeqScan) child).getTableId());
+        if (!(file instanceof HeapFile)) {
+            return 1;
+        }
+        return Math.max(1, Math.min(parallelism, ((HeapFile) file).numPages() / MIN_PAGES_PER_WORKER));
+    }
+
+    /**
+     * Worker w of n scans the pages [firstPage(pages, w, n), firstPage(pages, w + 1, n)).
+     *
+     * @return the first page of the worker's range
+     */
+    static int firstPage(int numPages, int worker, int workers) {
+        return (int) ((long) numPages * worker / workers);
+    }
+}
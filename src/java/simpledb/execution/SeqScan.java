@@ -23,6 +23,8 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator iterator;
+    // the table's TupleDesc with the field names prefixed by the alias
+    private transient TupleDesc aliasedTd;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -50,7 +52,7 @@ public class SeqScan implements OpIterator {
      *         be the actual name of the table in the catalog of the database
      */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(this.tableId);
     }
 
     /**
@@ -62,6 +64,20 @@ public class SeqScan implements OpIterator {
         return this.tableAlias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      *
@@ -78,6 +94,7 @@ public class SeqScan implements OpIterator {
         // Done by Huangyihang in 2023-02-08 11:40:44
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.aliasedTd = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -104,7 +121,17 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-08 11:42:35
-        return Database.getCatalog().getTupleDesc(this.tableId);
+        if (this.aliasedTd == null) {
+            TupleDesc td = Database.getCatalog().getTupleDesc(this.tableId);
+            Type[] types = new Type[td.numFields()];
+            String[] names = new String[td.numFields()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = td.getFieldType(i);
+                names[i] = this.tableAlias + "." + td.getFieldName(i);
+            }
+            this.aliasedTd = new TupleDesc(types, names);
+        }
+        return this.aliasedTd;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -0,0 +1,295 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.index.BTreeScan;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Join that sorts its inputs on the join fields and merges them.
+ * <p>
+ * An input that is already ascending on its join field, such as a
+ * {@link BTreeScan} of its key field or an ascending {@link OrderBy}, is used
+ * as it is; any other input is sorted with an external sort under the memory
+ * budget.
+ * <p>
+ * For an equality both inputs are sorted and advanced together; the right
+ * tuples of one key are buffered and joined with every left tuple of that
+ * key. The result is ascending on the join key.
+ * <p>
+ * For an inequality (a band join) only the inner input needs to be sorted:
+ * the tuples matching an outer tuple are then a prefix of it, which is read
+ * from the start for each outer tuple and left at the first tuple that does
+ * not match. A sorted inner input that spilled to disk is merged into a
+ * single run, so that these rewinds stay cheap. The inner input is the right
+ * one for {@code >} and {@code >=}, and the left one for {@code <} and
+ * {@code <=}. The result is in the order of the outer input.
+ */
+public class SortMergeJoin extends Operator {
+
+    /**
+     * Default memory budget for each external sort, in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final long memoryBudget;
+
+    // the inputs as joined: the sorted (or already ordered) children, or the outer child
+    transient private OpIterator left, right;
+    // equality: the current left tuple, the next right tuple, and the right tuples of one key
+    transient private Tuple leftTuple;
+    transient private Tuple rightTuple;
+    private final List<Tuple> group = new ArrayList<>();
+    transient private Field groupKey;
+    transient private int groupPos;
+    // inequality: the current outer tuple, while the prefix of the inner input matching it is read
+    transient private Tuple outer;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p      The predicate to use to join the children; EQUALS or one
+     *               of the four inequalities
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryBudget the most memory, in bytes, each sort may hold
+     *                     before it writes sorted runs to disk
+     * @see #SortMergeJoin(JoinPredicate, OpIterator, OpIterator)
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, long memoryBudget) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryBudget = memoryBudget;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return whether a sort-merge join can evaluate the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return whether the tuples of an iterator are known to come in
+     *         ascending order of the given field, without sorting them
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof BTreeScan) {
+            return ((BTreeScan) it).keyField() == field;
+        } else if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            int n1 = j.child1.getTupleDesc().numFields();
+            return j.pred.getOperator() == Predicate.Op.EQUALS
+                    && (field == j.pred.getField1() || field == n1 + j.pred.getField2());
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    private boolean outerIsLeft() {
+        Predicate.Op op = pred.getOperator();
+        return op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @param rewound whether the input is rewound for every outer tuple
+     */
+    private OpIterator sorted(OpIterator child, int field, boolean rewound) {
+        if (isSortedOn(child, field)) {
+            return child;
+        }
+        return new ExternalSort(child, new TupleComparator(field, true), memoryBudget, rewound);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (pred.getOperator() == Predicate.Op.EQUALS) {
+            left = sorted(child1, pred.getField1(), false);
+            right = sorted(child2, pred.getField2(), false);
+        } else if (outerIsLeft()) {
+            left = child1;
+            right = sorted(child2, pred.getField2(), true);
+        } else {
+            left = sorted(child1, pred.getField1(), true);
+            right = child2;
+        }
+        left.open();
+        right.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        leftTuple = null;
+        rightTuple = null;
+        group.clear();
+        groupKey = null;
+        groupPos = 0;
+        outer = null;
+    }
+
+    public void close() {
+        super.close();
+        if (right != null) {
+            right.close();
+        }
+        if (left != null) {
+            left.close();
+        }
+        left = null;
+        right = null;
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of the joining tuples from
+     * the left and right relation, like those of {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return pred.getOperator() == Predicate.Op.EQUALS ? nextEqual() : nextBand();
+    }
+
+    private Tuple nextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (leftTuple == null) {
+                if (!left.hasNext()) {
+                    return null;
+                }
+                leftTuple = left.next();
+                groupPos = 0;
+            }
+            Field key = leftTuple.getField(pred.getField1());
+            if (groupKey != null && key.compare(Predicate.Op.EQUALS, groupKey)) {
+                if (groupPos < group.size()) {
+                    return Tuple.merge(comboTD, leftTuple, group.get(groupPos++));
+                }
+                leftTuple = null;
+                continue;
+            }
+            // the left key is past the buffered group: find the right tuples of the new key
+            while (peekRight() != null && rightTuple.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key)) {
+                rightTuple = null;
+            }
+            if (peekRight() == null) {
+                return null;
+            }
+            Field rightKey = rightTuple.getField(pred.getField2());
+            if (!rightKey.compare(Predicate.Op.EQUALS, key)) {
+                leftTuple = null;
+                continue;
+            }
+            group.clear();
+            groupKey = rightKey;
+            while (peekRight() != null && rightTuple.getField(pred.getField2()).compare(Predicate.Op.EQUALS, groupKey)) {
+                group.add(rightTuple);
+                rightTuple = null;
+            }
+            groupPos = 0;
+        }
+    }
+
+    /**
+     * @return the next right tuple without consuming it, or null at the end
+     */
+    private Tuple peekRight() throws TransactionAbortedException, DbException {
+        if (rightTuple == null && right.hasNext()) {
+            rightTuple = right.next();
+        }
+        return rightTuple;
+    }
+
+    private Tuple nextBand() throws TransactionAbortedException, DbException {
+        boolean outerIsLeft = outerIsLeft();
+        OpIterator outerInput = outerIsLeft ? left : right;
+        OpIterator innerInput = outerIsLeft ? right : left;
+        while (true) {
+            if (outer == null) {
+                if (!outerInput.hasNext()) {
+                    return null;
+                }
+                outer = outerInput.next();
+                innerInput.rewind();
+            }
+            if (innerInput.hasNext()) {
+                Tuple inner = innerInput.next();
+                Tuple l = outerIsLeft ? outer : inner;
+                Tuple r = outerIsLeft ? inner : outer;
+                if (pred.filter(l, r)) {
+                    return Tuple.merge(comboTD, l, r);
+                }
+            }
+            // the inner input is sorted, so no later inner tuple matches either
+            outer = null;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
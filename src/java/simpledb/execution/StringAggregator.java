@@ -1,15 +1,8 @@
 package simpledb.execution;
 
 import simpledb.common.Type;
-import simpledb.storage.IntField;
-import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
-import  simpledb.storage.TupleIterator;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -31,8 +24,7 @@ public class StringAggregator implements Aggregator {
     private Type gbFieldType;
     private int aggrField;
     private Op what;
-    private CountHandler countHandler;
-    private static final String NO_GROUPING_KEY = "NO_GROUPING_KEY";
+    private GroupTable groups;
     public StringAggregator(int gbfield, Type gbfieldtype, int aggrField, Op what) {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-14 15:01:26
@@ -44,13 +36,14 @@ public class StringAggregator implements Aggregator {
         this.gbFieldType = gbfieldtype;
         this.aggrField = aggrField;
         this.what = what;
-        switch (what){
-            case COUNT:
-                countHandler = new CountHandler();
-                break;
-            default:
-                throw new IllegalArgumentException("unsupported operator");
-        }
+        this.groups = new GroupTable(gbfield == NO_GROUPING ? null : gbfieldtype);
+    }
+
+    /**
+     * @return the groups aggregated so far
+     */
+    GroupTable groups() {
+        return groups;
     }
 
     /**
@@ -64,13 +57,8 @@ public class StringAggregator implements Aggregator {
         if(this.gbFieldType!=null&&(!tup.getTupleDesc().getFieldType(aggrField).equals(Type.STRING_TYPE))){
             throw new IllegalArgumentException("unsupported type");
         }
-        String key = null;
-        if(gbField != NO_GROUPING){
-            key = tup.getField(gbField).toString();
-        }else{
-            key = NO_GROUPING_KEY;
-        }
-        countHandler.handle(key);
+        int g = gbField == NO_GROUPING ? 0 : groups.group(tup.getField(gbField));
+        groups.addCount(g);
     }
 
     /**
@@ -84,52 +72,12 @@ public class StringAggregator implements Aggregator {
     public OpIterator iterator() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-14 16:24:05
-        Map<String, Integer> result = countHandler.getGBResult();
-        TupleDesc td = null;
-        Type[] types = null;
-        String[] names = null;
-        List<Tuple> tuples = new ArrayList<>();
+        TupleDesc td;
         if(gbField != NO_GROUPING){
             td = new TupleDesc(new Type[]{gbFieldType, Type.INT_TYPE}, new String[]{"groupVal", "aggregateVal"});
-            types = new Type[]{gbFieldType, Type.INT_TYPE};
-            names = new String[]{"groupVal", "aggregateVal"};
-            for(Map.Entry<String, Integer> entry : result.entrySet()){
-                Tuple tuple = new Tuple(td);
-                if(gbFieldType == Type.INT_TYPE) {
-                    tuple.setField(this.gbField, new IntField(Integer.parseInt(entry.getKey())));
-                }else if(gbFieldType == Type.STRING_TYPE){
-                    tuple.setField(this.gbField, new StringField(entry.getKey(), Type.STRING_LEN));
-                }
-                tuple.setField(this.aggrField, new IntField(entry.getValue()));
-                tuples.add(tuple);
-            }
         }else {
             td = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{"aggregateVal"});
-            types = new Type[]{Type.INT_TYPE};
-            names = new String[]{"aggregateVal"};
-            for(Integer value : result.values()){
-                Tuple tuple = new Tuple(td);
-                tuple.setField(0,new IntField(value));
-                tuples.add(tuple);
-            }
-        }
-        return new TupleIterator(td, tuples);
-    }
-
-    private class CountHandler{
-        ConcurrentHashMap<String, Integer> gbResult;
-        public CountHandler(){
-            gbResult = new ConcurrentHashMap<>();
-        }
-        public void handle(String key){
-            if(gbResult.containsKey(key)){
-                gbResult.put(key, gbResult.get(key) + 1);
-            }else{
-                gbResult.put(key, 1);
-            }
-        }
-        public Map<String,Integer> getGBResult(){
-            return gbResult;
         }
+        return groups.iterator(td, what);
     }
 }
@@ -0,0 +1,194 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * TopN is an ORDER BY followed by a LIMIT in one operator: it returns the
+ * first n tuples of its child in the order of an {@link OrderBy} on the same
+ * fields, without sorting the whole input.
+ * <p>
+ * The child is read once, keeping the best n tuples so far in a heap whose
+ * head is the worst of them; a tuple that beats the head replaces it. That
+ * takes O(n) memory and O(log n) time per tuple. Tuples that are equal on all
+ * the sort fields keep the order of the child, as with {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int limit;
+
+    // the result, in order
+    private transient Tuple[] top;
+    private transient int pos;
+
+    /**
+     * A tuple kept in the heap, with its position in the child's output to
+     * break ties.
+     */
+    private static class Ranked {
+        final Tuple tuple;
+        final long seq;
+
+        Ranked(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc          true if the sort order is ascending.
+     * @param limit        the number of tuples to return.
+     * @param child        the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for each field, true if its sort order is
+     *                      ascending.
+     * @param limit         the number of tuples to return.
+     * @param child         the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order for each of at least one field");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("negative limit " + limit);
+        }
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+    }
+
+    /**
+     * @return all the sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if it is in ascending order
+     */
+    public boolean[] getAscending() {
+        return asc.clone();
+    }
+
+    /**
+     * @return the most tuples returned
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        try {
+            top = select();
+        } finally {
+            child.close();
+        }
+        pos = 0;
+        super.open();
+    }
+
+    /**
+     * Read the child and keep its first tuples in order.
+     *
+     * @return the first tuples, in order
+     */
+    private Tuple[] select() throws DbException, TransactionAbortedException {
+        if (limit == 0) {
+            return new Tuple[0];
+        }
+        Comparator<Tuple> keys = new TupleComparator(orderByFields, asc);
+        Comparator<Ranked> order = (a, b) -> {
+            int c = keys.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // 堆顶是目前保留的元组中排在最后的一个
+        PriorityQueue<Ranked> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, order.reversed());
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Ranked(t, seq++));
+            } else if (keys.compare(t, heap.peek().tuple) < 0) {
+                // a later tuple only beats an equal one if it sorts strictly before it
+                heap.poll();
+                heap.add(new Ranked(t, seq++));
+            } else {
+                seq++;
+            }
+        }
+        Ranked[] ranked = heap.toArray(new Ranked[0]);
+        Arrays.sort(ranked, order);
+        Tuple[] result = new Tuple[ranked.length];
+        for (int i = 0; i < ranked.length; i++) {
+            result[i] = ranked[i].tuple;
+        }
+        return result;
+    }
+
+    public void close() {
+        super.close();
+        top = null;
+    }
+
+    public void rewind() {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first tuples of the
+     * child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (top != null && pos < top.length) {
+            return top[pos++];
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
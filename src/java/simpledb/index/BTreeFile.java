@@ -11,6 +11,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -32,6 +33,8 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final DbFileChannel channel;
+    private volatile MappedDbFile mapped;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +49,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = new DbFileChannel(f);
     }
 
     /**
@@ -87,34 +91,15 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
+                readFully(pageBuf, 0);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                readFully(pageBuf, pageOffset(id.getPageNumber()));
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
                     return new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,8 +112,46 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    private void readFully(byte[] pageBuf, long offset) throws IOException {
+        if (!channel.covers(offset + 1)) {
+            throw new IllegalArgumentException("Read past end of table");
+        }
+        try {
+            MappedDbFile m = mapped;
+            ByteBuffer view = m == null ? null : m.slice(offset, pageBuf.length);
+            if (view != null) {
+                view.get(pageBuf);
+            } else {
+                channel.read(pageBuf, offset);
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Unable to read "
+                    + pageBuf.length + " bytes from BTreeFile");
+        }
+    }
+
+    /**
+     * Switch the memory-mapped read path on or off. While it is on, pages are
+     * copied out of a read-only mapping of the file rather than read with a
+     * system call; writes still go through the file channel.
+     *
+     * @see MappedDbFile
+     */
+    public void setMemoryMapped(boolean on) {
+        mapped = on ? new MappedDbFile(channel) : null;
+    }
+
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * @return the file offset of the given non-root-pointer page
+     */
+    private static long pageOffset(int pageNumber) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
     }
 
     /**
@@ -141,14 +164,10 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(data, 0);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(data, pageOffset(page.getId().getPageNumber()));
         }
     }
 
@@ -157,7 +176,11 @@ public class BTreeFile implements DbFile {
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        try {
+            return (int) ((channel.refreshSize() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -186,7 +209,22 @@ public class BTreeFile implements DbFile {
                                        Field f)
             throws DbException, TransactionAbortedException {
         // TODO: some code goes here
-        return null;
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+        }
+        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        BTreeEntry last = null;
+        for (Iterator<BTreeEntry> it = page.iterator(); it.hasNext(); ) {
+            last = it.next();
+            //相等的键可能也在左子树中，所以取第一个不小于f的键的左孩子
+            if (f == null || f.compare(Op.LESS_THAN_OR_EQ, last.getKey())) {
+                return findLeafPage(tid, dirtypages, last.getLeftChild(), perm, f);
+            }
+        }
+        if (last == null) {
+            throw new DbException("internal page " + pid + " has no entries");
+        }
+        return findLeafPage(tid, dirtypages, last.getRightChild(), perm, f);
     }
 
     /**
@@ -235,8 +273,39 @@ public class BTreeFile implements DbFile {
         // the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
         // the sibling pointers of all the affected leaf pages.  Return the page into which a
         // tuple with the given key field should be inserted.
-        return null;
+        BTreeLeafPage rightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+        int move = page.getNumTuples() / 2;
+        Iterator<Tuple> it = page.reverseIterator();
+        List<Tuple> moving = new ArrayList<>(move);
+        while (moving.size() < move && it.hasNext()) {
+            moving.add(it.next());
+        }
+        for (Tuple t : moving) {
+            page.deleteTuple(t);
+            rightPage.insertTuple(t);
+        }
 
+        //维护兄弟指针：新页插在原页与其右兄弟之间
+        BTreePageId oldRightId = page.getRightSiblingId();
+        if (oldRightId != null) {
+            BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+            oldRight.setLeftSiblingId(rightPage.getId());
+        }
+        rightPage.setRightSiblingId(oldRightId);
+        rightPage.setLeftSiblingId(page.getId());
+        page.setRightSiblingId(rightPage.getId());
+
+        //右页第一个键复制到父节点
+        Field middle = rightPage.iterator().next().getField(keyField);
+        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle);
+        parent.insertEntry(new BTreeEntry(middle, page.getId(), rightPage.getId()));
+        page.setParentId(parent.getId());
+        rightPage.setParentId(parent.getId());
+
+        if (field != null && field.compare(Op.GREATER_THAN, middle)) {
+            return rightPage;
+        }
+        return page;
     }
 
     /**
@@ -272,7 +341,33 @@ public class BTreeFile implements DbFile {
         // the parent pointers of all the children moving to the new page.  updateParentPointers()
         // will be useful here.  Return the page into which an entry with the given key field
         // should be inserted.
-        return null;
+        BTreeInternalPage rightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+        int move = page.getNumEntries() / 2;
+        Iterator<BTreeEntry> it = page.reverseIterator();
+        List<BTreeEntry> moving = new ArrayList<>(move);
+        while (moving.size() < move && it.hasNext()) {
+            moving.add(it.next());
+        }
+        for (BTreeEntry e : moving) {
+            page.deleteKeyAndRightChild(e);
+            rightPage.insertEntry(e);
+        }
+
+        //中间键上推到父节点，不留在任何一个子页中
+        BTreeEntry middle = it.next();
+        page.deleteKeyAndRightChild(middle);
+        middle.setLeftChild(page.getId());
+        middle.setRightChild(rightPage.getId());
+        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+        parent.insertEntry(middle);
+        page.setParentId(parent.getId());
+        rightPage.setParentId(parent.getId());
+        updateParentPointers(tid, dirtypages, rightPage);
+
+        if (field != null && field.compare(Op.GREATER_THAN, middle.getKey())) {
+            return rightPage;
+        }
+        return page;
     }
 
     /**
@@ -802,15 +897,12 @@ public class BTreeFile implements DbFile {
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
         synchronized (this) {
-            if (f.length() == 0) {
+            if (channel.size() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.write(emptyRootPtrData, 0);
+                channel.write(emptyLeafData, emptyRootPtrData.length);
             }
         }
 
@@ -864,11 +956,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                channel.write(emptyData, channel.size());
                 emptyPageNo = numPages();
             }
         }
@@ -898,10 +987,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().removePage(newPageId);
@@ -1030,6 +1116,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    BTreePageId pinned = null;
+    BufferRing ring = null;
 
     final TransactionId tid;
     final BTreeFile f;
@@ -1049,10 +1137,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
+        // a full scan of a large index reads its leaves through a private ring
+        ring = Database.getBufferPool().scanRingFor(f.numPages());
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
                 tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, null);
+        curp = pin(f.findLeafPage(tid, root, null).getId());
         it = curp.iterator();
     }
 
@@ -1070,10 +1160,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
             if (nextp == null) {
+                unpin();
                 curp = null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                curp = pin(nextp);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1098,9 +1188,28 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        unpin();
+        ring = null;
         it = null;
         curp = null;
     }
+
+    /**
+     * Pin the leaf page being iterated over, dropping the pin on the previous one
+     */
+    private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+        unpin();
+        BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY, ring);
+        pinned = pid;
+        return page;
+    }
+
+    private void unpin() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(pinned);
+            pinned = null;
+        }
+    }
 }
 
 /**
@@ -1111,6 +1220,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    BTreePageId pinned = null;
 
     final TransactionId tid;
     final BTreeFile f;
@@ -1139,9 +1249,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, ipred.getField());
+            curp = pin(f.findLeafPage(tid, root, ipred.getField()).getId());
         } else {
-            curp = f.findLeafPage(tid, root, null);
+            curp = pin(f.findLeafPage(tid, root, null).getId());
         }
         it = curp.iterator();
     }
@@ -1176,10 +1286,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             BTreePageId nextp = curp.getRightSiblingId();
             // if there are no more pages to the right, end the iteration
             if (nextp == null) {
+                unpin();
                 return null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                curp = pin(nextp);
                 it = curp.iterator();
             }
         }
@@ -1200,6 +1310,24 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        unpin();
         it = null;
     }
+
+    /**
+     * Pin the leaf page being iterated over, dropping the pin on the previous one
+     */
+    private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+        unpin();
+        BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+        pinned = pid;
+        return page;
+    }
+
+    private void unpin() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(pinned);
+            pinned = null;
+        }
+    }
 }
@@ -6,6 +6,7 @@ import simpledb.common.Type;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
@@ -34,6 +35,7 @@ public class BTreeHeaderPage implements Page {
 
     byte[] oldData;
     private final Byte oldDataLock = (byte) 0;
+    private volatile long pageLsn = LogFile.NO_LSN;
 
     /**
      * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -274,6 +276,14 @@ public class BTreeHeaderPage implements Page {
             return null;
     }
 
+    public long getPageLSN() {
+        return pageLsn;
+    }
+
+    public void setPageLSN(long lsn) {
+        pageLsn = lsn;
+    }
+
     /**
      * Returns true if the page of the BTreeFile associated with slot i is used
      */
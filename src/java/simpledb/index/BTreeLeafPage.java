@@ -15,7 +15,7 @@ import java.util.NoSuchElementException;
  * @see BTreeFile
  * @see BufferPool
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
     private final byte[] header;
     private final Tuple[] tuples;
     private final int numSlots;
@@ -436,6 +436,19 @@ public class BTreeLeafPage extends BTreePage {
         }
     }
 
+    public int getSlotBitmapOffset() {
+        // after the parent and sibling pointers
+        return 3 * INDEX_SIZE;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public int getSlotSize() {
+        return td.getSize();
+    }
+
     /**
      * Returns the number of tuples currently stored on this page
      */
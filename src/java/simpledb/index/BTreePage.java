@@ -5,6 +5,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
@@ -29,6 +30,7 @@ public abstract class BTreePage implements Page {
     protected int parent; // parent is always internal node or 0 for root node
     protected byte[] oldData;
     protected final Byte oldDataLock = (byte) 0;
+    protected volatile long pageLsn = LogFile.NO_LSN;
 
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -134,6 +136,14 @@ public abstract class BTreePage implements Page {
             return null;
     }
 
+    public long getPageLSN() {
+        return pageLsn;
+    }
+
+    public void setPageLSN(long lsn) {
+        pageLsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
@@ -27,6 +28,7 @@ public class BTreeRootPtrPage implements Page {
     private int header;
 
     private byte[] oldData;
+    private volatile long pageLsn = LogFile.NO_LSN;
 
     /**
      * Constructor.
@@ -141,6 +143,14 @@ public class BTreeRootPtrPage implements Page {
             return null;
     }
 
+    public long getPageLSN() {
+        return pageLsn;
+    }
+
+    public void setPageLSN(long lsn) {
+        pageLsn = lsn;
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
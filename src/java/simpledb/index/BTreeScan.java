@@ -26,6 +26,7 @@ public class BTreeScan implements OpIterator {
     private TupleDesc myTd;
     private IndexPredicate ipred = null;
     private transient DbFileIterator it;
+    private int tableid;
     private String tablename;
     private String alias;
 
@@ -79,6 +80,7 @@ public class BTreeScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.isOpen = false;
         this.alias = tableAlias;
+        this.tableid = tableid;
         this.tablename = Database.getCatalog().getTableName(tableid);
         if (ipred == null) {
             this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
@@ -102,6 +104,14 @@ public class BTreeScan implements OpIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
     }
 
+    /**
+     * @return the index of the key field of the B+ tree, which is the order
+     *         the tuples are returned in
+     */
+    public int keyField() {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         if (isOpen)
             throw new DbException("double open on one OpIterator.");
@@ -2,7 +2,13 @@ package simpledb.optimizer;
 
 import simpledb.ParsingException;
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
 import simpledb.storage.TupleDesc;
 
 import javax.swing.*;
@@ -16,6 +22,20 @@ import java.util.*;
  * logical plan.
  */
 public class JoinOptimizer {
+
+    /**
+     * Equi-joins on int fields whose inputs scan at least this many pages in
+     * total are run by a {@link ParallelHashJoin}, if there is more than one
+     * processor and the inputs fit in memory.
+     */
+    public static final int PARALLEL_JOIN_PAGES = 4 * ParallelHashJoin.MIN_PAGES_PER_WORKER;
+
+    /**
+     * The fraction of all pairs of tuples assumed to satisfy an inequality
+     * join predicate.
+     */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -68,12 +88,71 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        boolean parallel = parallelHashJoinApplies(p, plan1, plan2);
+        if (lj.p == Predicate.Op.EQUALS && IndexNestedLoopJoin.canProbe(plan2, t2id)
+                && (!parallel || scannedPages(plan1) <= scannedPages(plan2))) {
+            // 外侧不大于内侧时，逐个查索引比把两侧都读进内存便宜
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (parallel) {
+            j = new ParallelHashJoin(p, plan1, plan2);
+        } else if (lj.p != Predicate.Op.EQUALS && SortMergeJoin.supports(lj.p)) {
+            // 范围连接只需对内侧排序；按 estimateJoinCost 的模型，它几乎总比嵌套循环便宜
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // both inputs are already in key order: a single merge pass
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * @return whether a join is an equality of int fields over inputs large
+     *         enough to be worth joining on several processors, yet small
+     *         enough to be held in memory
+     */
+    private static boolean parallelHashJoinApplies(JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        if (p.getOperator() != Predicate.Op.EQUALS
+                || plan1.getTupleDesc().getFieldType(p.getField1()) != Type.INT_TYPE
+                || plan2.getTupleDesc().getFieldType(p.getField2()) != Type.INT_TYPE
+                || Runtime.getRuntime().availableProcessors() < 2) {
+            return false;
+        }
+        long pages = scannedPages(plan1) + scannedPages(plan2);
+        // 内存中的元组对象约为页上大小的数倍
+        return pages >= PARALLEL_JOIN_PAGES
+                && pages * BufferPool.getPageSize() * 4 <= Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * @return the number of pages of the tables scanned by a plan, an upper
+     *         bound on the size of its output when it has no joins
+     */
+    private static long scannedPages(OpIterator plan) {
+        if (plan instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+            if (f instanceof HeapFile) {
+                return ((HeapFile) f).numPages();
+            } else if (f instanceof BTreeFile) {
+                return ((BTreeFile) f).numPages();
+            }
+            return 0;
+        }
+        long pages = 0;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null) {
+                    pages += scannedPages(child);
+                }
+            }
+        }
+        return pages;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -96,6 +175,17 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * @param innerIsTable whether the right-hand side of the join is the
+     *                     table j.t2Alias itself rather than a subplan that
+     *                     joins it, so that its index can be searched
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                    double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -105,11 +195,105 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return card1*cost2 + card2 + cost1 + cost2;
+            if (j.p != Predicate.Op.EQUALS && SortMergeJoin.supports(j.p)) {
+                return estimateBandJoinCost(j.p, card1, card2, cost1, cost2);
+            }
+            if (!SortMergeJoin.supports(j.p)) {
+                return estimateBlockJoinCost(card1, card2, cost1, cost2, blockTuples(j.t1Alias));
+            }
+            double cost = card1*cost2 + card2 + cost1 + cost2;
+            int indexPages = innerIsTable && j.p == Predicate.Op.EQUALS ? indexPages(j) : 0;
+            if (indexPages > 0) {
+                cost = Math.min(cost, estimateIndexJoinCost(card1, cost1, cost2, indexPages));
+            }
+            return cost;
 //            return -1.0;
         }
     }
 
+    /**
+     * Estimate the cost of an inequality join run as a {@link SortMergeJoin}:
+     * one scan of each input, a sort of the inner input, and for each outer
+     * tuple a read of the prefix of the inner input that matches it, plus
+     * the first tuple that does not.
+     *
+     * @see #estimateJoinCost
+     */
+    static double estimateBandJoinCost(Predicate.Op op, int card1, int card2,
+                                       double cost1, double cost2) {
+        boolean outerIsLeft = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        int outerCard = outerIsLeft ? card1 : card2;
+        int innerCard = outerIsLeft ? card2 : card1;
+        double sortCost = innerCard * Math.max(1.0, Math.log(innerCard) / Math.log(2));
+        return cost1 + cost2 + sortCost
+                + outerCard * (1.0 + innerCard * RANGE_JOIN_SELECTIVITY);
+    }
+
+    /**
+     * Estimate the cost of a join run as a block nested-loop {@link Join}:
+     * one scan of the inner input per block of outer tuples, and a
+     * comparison of every pair of tuples.
+     *
+     * @param blockTuples the number of outer tuples per block
+     * @see #estimateJoinCost
+     */
+    static double estimateBlockJoinCost(int card1, int card2, double cost1, double cost2,
+                                        int blockTuples) {
+        double blocks = Math.max(1.0, Math.ceil((double) card1 / blockTuples));
+        return cost1 + blocks * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * @return the number of tuples of a table that fit in a block of
+     *         {@link Join#DEFAULT_BLOCK_PAGES} pages
+     */
+    private int blockTuples(String tableAlias) {
+        Integer tableId = p.getTableId(tableAlias);
+        if (tableId == null) {
+            return Join.DEFAULT_BLOCK_PAGES;
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        int tuplesPerPage = Math.max(1, HeapPage.slotsPerPage(td));
+        return tuplesPerPage * Join.DEFAULT_BLOCK_PAGES;
+    }
+
+    /**
+     * @return the number of pages of the right-hand table of a join if it is
+     *         a B+ tree keyed on the join field, or 0 otherwise
+     */
+    private int indexPages(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null) {
+            return 0;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            return 0;
+        }
+        BTreeFile bf = (BTreeFile) f;
+        try {
+            return bf.getTupleDesc().indexForFieldName(j.f2PureName) == bf.keyField()
+                    ? Math.max(1, bf.numPages()) : 0;
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Estimate the cost of an equality join run as an
+     * {@link IndexNestedLoopJoin}: one scan of the outer input, and for each
+     * outer tuple a search of the inner B+ tree that reads one leaf page. The
+     * internal pages are few, and since the probes are sorted they stay in
+     * the buffer pool.
+     *
+     * @param innerPages the number of pages of the inner B+ tree
+     * @see #estimateJoinCost
+     */
+    static double estimateIndexJoinCost(int card1, double cost1, double cost2, int innerPages) {
+        double pageCost = cost2 / innerPages;
+        return cost1 + card1 * (pageCost + 1.0);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -361,10 +545,13 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        // the side that is not prevBest is a table that an index join can search
+        boolean rightIsTable = news.isEmpty() || doesJoin(prevBest, table1Alias);
+        boolean leftIsTable = news.isEmpty() || !rightIsTable;
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, rightIsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, leftIsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
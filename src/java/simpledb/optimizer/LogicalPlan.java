@@ -26,6 +26,12 @@ import java.util.*;
  * best implementations for joins.
  */
 public class LogicalPlan {
+
+    /**
+     * The limit of a query without a LIMIT clause.
+     */
+    public static final int NO_LIMIT = -1;
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -37,8 +43,10 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    // the ORDER BY fields, most significant first, and whether each is ascending
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private int limit = NO_LIMIT;
     private String query;
     //    private Query owner;
 
@@ -224,8 +232,27 @@ public class LogicalPlan {
     }
 
     /**
-     * Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-     * a single ORDER BY field.
+     * Limit the query to its first n result tuples.
+     *
+     * @param n the most tuples to return, or {@link #NO_LIMIT}
+     */
+    public void setLimit(int n) {
+        if (n < 0 && n != NO_LIMIT) {
+            throw new IllegalArgumentException("negative limit " + n);
+        }
+        limit = n;
+    }
+
+    /**
+     * @return the most tuples the query returns, or {@link #NO_LIMIT}
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+     * a field that breaks the ties left by the fields added before it.
      *
      * @param field the field to order by
      * @param asc   true if should be ordered in ascending order, false for descending order
@@ -233,9 +260,8 @@ public class LogicalPlan {
      */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field = disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAscs.add(asc);
     }
 
     /**
@@ -496,8 +522,18 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().indexForFieldName(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().indexForFieldName(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            // 有LIMIT时只需保留前limit个元组，不必全排序
+            node = limit == NO_LIMIT ? new OrderBy(fields, ascs, node)
+                    : new TopN(fields, ascs, limit, node);
+        } else if (limit != NO_LIMIT) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -12,14 +12,35 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
+    /**
+     * @return the predicate of a join operator other than {@link Join}, or
+     *         null if the operator is not one
+     */
+    private static JoinPredicate joinPredicate(Operator o) {
+        if (o instanceof HashEquiJoin) {
+            return ((HashEquiJoin) o).getJoinPredicate();
+        } else if (o instanceof ParallelHashJoin) {
+            return ((ParallelHashJoin) o).getJoinPredicate();
+        } else if (o instanceof SortMergeJoin) {
+            return ((SortMergeJoin) o).getJoinPredicate();
+        } else if (o instanceof IndexNestedLoopJoin) {
+            return ((IndexNestedLoopJoin) o).getJoinPredicate();
+        }
+        return null;
+    }
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
@@ -29,7 +50,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || joinPredicate(o) != null) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -136,18 +157,20 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
+            } else if (joinPredicate(plan) != null) {
+                Operator j = plan;
+                JoinPredicate jp = joinPredicate(plan);
+                String symbol = plan instanceof SortMergeJoin ? MERGE_JOIN
+                        : plan instanceof IndexNestedLoopJoin ? INDEX_JOIN : HASH_JOIN;
                 TupleDesc td = j.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol, field1
                         + jp.getOperator() + field2, j.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +179,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -216,22 +239,37 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
+            } else if (plan instanceof OrderBy || plan instanceof TopN || plan instanceof Limit) {
+                String symbol;
+                StringBuilder args = new StringBuilder();
+                if (plan instanceof Limit) {
+                    symbol = LIMIT;
+                    args.append(((Limit) plan).getLimit());
+                } else {
+                    symbol = plan instanceof TopN ? TOPN : ORDERBY;
+                    int[] fields = plan instanceof TopN ? ((TopN) plan).getOrderByFields()
+                            : ((OrderBy) plan).getOrderByFields();
+                    for (int f : fields) {
+                        if (args.length() > 0)
+                            args.append(",");
+                        args.append(children[0].getTupleDesc().getFieldName(f));
+                    }
+                    if (plan instanceof TopN)
+                        args.append(";").append(((TopN) plan).getLimit());
+                }
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()), o.getEstimatedCardinality());
+                        symbol,
+                        args, plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (ORDERBY.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = ORDERBY.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor child = this.buildTree(queryPlanDepth,
                         currentDepth + 2 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
                 thisNode.upBarPosition = child.upBarPosition;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - ORDERBY.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(child.width,
                         thisNode.textStartPosition + thisNode.text.length()
                                 - currentStartPosition);
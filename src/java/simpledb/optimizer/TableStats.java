@@ -103,7 +103,7 @@ public class TableStats {
         this.pageNum = ((HeapFile) dbFile).numPages();
         int [] min = new int[this.tupleDesc.numFields()];
         int [] max = new int[this.tupleDesc.numFields()];
-        DbFileIterator it = dbFile.iterator(new TransactionId());
+        DbFileIterator it = dbFile.viewIterator(new TransactionId());  //只读一遍每个tuple，用可复用的视图
         this.histogram = new Object[this.tupleDesc.numFields()];
         try{
             it.open();
@@ -7,11 +7,11 @@ import simpledb.common.Permissions;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import simpledb.storage.LRUCache;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -21,6 +21,9 @@ import java.util.concurrent.ConcurrentMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * A background page cleaner writes out pages that have been dirty for a
+ * while, see {@link #cleanPages}, so that checkpoints do not have to.
  *
  * @Threadsafe, all fields are final
  */
@@ -38,9 +41,54 @@ public class BufferPool {
      * constructor instead.
      */
     public static final int DEFAULT_PAGES = 50;
+
+    /**
+     * Pages are partitioned into at most this many shards. Each shard gets at
+     * least MIN_PAGES_PER_SHARD pages, so small pools keep a single shard.
+     */
+    private static final int MAX_SHARDS = 64;
+    private static final int MIN_PAGES_PER_SHARD = 16;
+
+    /**
+     * Scans of files that do not fit in the pool read through a
+     * {@link BufferRing} of at most SCAN_RING_PAGES frames.
+     */
+    private static final int SCAN_RING_PAGES = 32;
+
+    /**
+     * Sequential scans read at most this many pages ahead, and never more than
+     * a quarter of the pool (see {@link ReadAhead}).
+     */
+    private static final int READ_AHEAD_PAGES = 32;
+
+    /**
+     * By default the page cleaner writes out pages that have been dirty for
+     * this long, see {@link #setCleanerAge}.
+     */
+    public static final long DEFAULT_CLEANER_AGE_MILLIS = 1000;
+
+    // the page cleaner looks for old dirty pages at least this often
+    private static final long CLEANER_MAX_SLEEP_MILLIS = 1000;
+
     private int numPages;
-    private LRUCache<PageId,Page> pages;
+    private final BufferPoolShard[] shards;
+    private final int shardMask;
     private LockManager lockManager;
+    private final ReadAhead readAhead;
+
+    // when each dirty page was dirtied, if it has not been written since
+    private final ConcurrentMap<PageId, Long> dirtySince = new ConcurrentHashMap<>();
+    // the pages each transaction changed through insertTuple and deleteTuple
+    private final ConcurrentMap<TransactionId, Set<PageId>> changedPages = new ConcurrentHashMap<>();
+    // held by a transaction while it changes pages, so the cleaner does not log a page half changed
+    private final ConcurrentMap<TransactionId, ReentrantLock> changeLatches = new ConcurrentHashMap<>();
+    // pages the cleaner has logged and not written yet. protected by this
+    private final Map<PageId, CleanedPage> cleaning = new HashMap<>();
+    private volatile long cleanerAge = DEFAULT_CLEANER_AGE_MILLIS;
+    private final Object cleanerLock = new Object();
+    private Thread cleaner;//protected by cleanerLock
+    // why the page cleaner stopped, if it failed; reported by flushPages from then on
+    private volatile IOException cleanerError;
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -49,9 +97,108 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-01-30 16:57:20
-        this.pages = new LRUCache<>(numPages);
-        this.numPages=numPages;
+        this(numPages, defaultNumShards(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, partitioned into
+     * numShards independently latched shards.
+     *
+     * @param numPages  maximum number of pages in this buffer pool.
+     * @param numShards number of shards, must be a power of two no larger than numPages
+     */
+    public BufferPool(int numPages, int numShards) {
+        if (numShards < 1 || Integer.bitCount(numShards) != 1 || numShards > Math.max(1, numPages)) {
+            throw new IllegalArgumentException("invalid number of shards: " + numShards);
+        }
+        this.numPages = numPages;
+        this.shards = new BufferPoolShard[numShards];
+        this.shardMask = numShards - 1;
+        for (int i = 0; i < numShards; i++) {
+            // spread the remainder over the first shards
+            int capacity = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+            this.shards[i] = new BufferPoolShard(capacity);
+        }
         this.lockManager= new LockManager();
+        this.readAhead = new ReadAhead(this, Math.min(READ_AHEAD_PAGES, numPages / 4));
+    }
+
+    private static int defaultNumShards(int numPages) {
+        int limit = Math.min(MAX_SHARDS, Runtime.getRuntime().availableProcessors() * 2);
+        int n = 1;
+        while (n * 2 <= limit && numPages / (n * 2) >= MIN_PAGES_PER_SHARD) {
+            n *= 2;
+        }
+        return n;
+    }
+
+    private BufferPoolShard shardFor(PageId pid) {
+        int h = pid.getTableId() * 31 + pid.getPageNumber();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return shards[h & shardMask];
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Returns a ring for a sequential scan over a file with the given number of
+     * pages, or null if the file fits in the pool and can be cached normally.
+     *
+     * @param numFilePages the number of pages of the scanned file
+     */
+    public BufferRing scanRingFor(int numFilePages) {
+        if (numFilePages <= numPages) {
+            return null;
+        }
+        return new BufferRing(Math.max(1, Math.min(SCAN_RING_PAGES, numPages / 8)));
+    }
+
+    /**
+     * @return the most pages a sequential scan reads ahead; 0 if read-ahead is off
+     */
+    public int getReadAheadWindow() {
+        int w = readAhead.getMaxWindow();
+        return w < ReadAhead.MIN_WINDOW ? 0 : w;
+    }
+
+    /**
+     * Set the most pages a sequential scan reads ahead. The window grows up to
+     * this size while the scan stays sequential. Values below
+     * {@value ReadAhead#MIN_WINDOW} turn read-ahead off.
+     */
+    public void setReadAheadWindow(int maxPages) {
+        readAhead.setMaxWindow(maxPages);
+    }
+
+    /**
+     * @return whether the page is cached, without counting as an access
+     */
+    boolean isResident(PageId pid) {
+        return shardFor(pid).contains(pid);
+    }
+
+    /**
+     * @return the number of shards this buffer pool is partitioned into
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /**
+     * Set how long a page stays dirty before the page cleaner writes it out.
+     */
+    public void setCleanerAge(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("invalid cleaner age " + millis);
+        }
+        cleanerAge = millis;
     }
 
     public static int getPageSize() {
@@ -88,27 +235,107 @@ public class BufferPool {
             throws TransactionAbortedException, DbException {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-05 11:28:26
+        return getPage(tid, pid, perm, false, null, null);
+    }
+
+    /**
+     * Like {@link #getPage}, but also pins the page: a pinned page is never
+     * evicted until every pin has been dropped with {@link #unpinPage}.
+     * Operators use this for the page they are currently iterating over.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, true, null, null);
+    }
+
+    /**
+     * Like {@link #pinPage(TransactionId, PageId, Permissions)}, but a page that
+     * has to be read from disk recycles a frame of the given ring instead of
+     * taking one from the shared pool.
+     *
+     * @param ring the scan's ring, or null to use the shared pool
+     * @see #scanRingFor(int)
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, true, ring, null);
+    }
+
+    /**
+     * Like {@link #pinPage(TransactionId, PageId, Permissions, BufferRing)},
+     * for a scan that pins the pages of a heap file in order: the pin is
+     * reported to the scan's read-ahead stream.
+     *
+     * @param stream the scan's stream, see {@link #readAheadStream}
+     */
+    Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring, ReadAhead.Stream stream)
+            throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, true, ring, stream);
+    }
+
+    /**
+     * @return a new read-ahead stream for a sequential scan; pass it to
+     * {@link #endScan} when the scan is done
+     */
+    ReadAhead.Stream readAheadStream() {
+        return readAhead.newStream();
+    }
+
+    /**
+     * Drop the pages read ahead for a scan and not used.
+     */
+    void endScan(ReadAhead.Stream stream) {
+        readAhead.closed(stream);
+    }
+
+    /**
+     * Drop one pin taken by {@link #pinPage}. Does nothing if the page is no
+     * longer resident.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+        shardFor(pid).unpin(pid);
+    }
+
+    /**
+     * @return the number of outstanding pins on the page, or 0 if it is not resident
+     */
+    public int getPinCount(PageId pid) {
+        return shardFor(pid).getPinCount(pid);
+    }
 
-        boolean lockAcquired = false;
-        long start = System.currentTimeMillis();
-        long timeout = new Random().nextInt(1000) + 1000;
-        while (!lockAcquired) {
-            long now = System.currentTimeMillis();
-            if (now - start > timeout) {
-                throw new TransactionAbortedException();
+    private Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean pin, BufferRing ring,
+                         ReadAhead.Stream stream)
+            throws TransactionAbortedException, DbException {
+        // blocks in the page's wait queue; throws at once if this
+        // transaction is chosen to break a deadlock
+        lockManager.acquireLock(tid, pid, perm);
+        BufferPoolShard shard = shardFor(pid);
+        Page page = pin ? shard.pin(pid) : shard.get(pid);
+        if (page == null) {
+            // read outside the shard latch so that a miss does not stall hits
+            page = readAhead.take(pid);
+            if (page == null) {
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = dbFile.readPage(pid);
             }
-            lockAcquired = lockManager.acquireLock(tid, pid, perm);
-        }
-        if(this.pages.get(pid)==null){
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            if(this.pages.getSize()>=this.numPages){
-                evictPage();
+            if (ring != null) {
+                PageId displaced = ring.add(pid);
+                if (displaced != null && !displaced.equals(pid)) {
+                    shardFor(displaced).evictIfCold(displaced);
+                }
             }
-            this.pages.put(pid, page);
-            return page;
+            page = shard.putIfAbsent(pid, page, pin, ring != null);
         }
-        return this.pages.get(pid);
+        if (stream != null) {
+            readAhead.accessed(stream, pid);
+        }
+        return page;
     }
 
     /**
@@ -150,6 +377,9 @@ public class BufferPool {
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
      *
+     * A transaction whose pages cannot be written does not commit, and keeps
+     * its locks: it fails with a RuntimeException wrapping the IOException.
+     *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
@@ -160,12 +390,24 @@ public class BufferPool {
             try {
                 flushPages(tid);
             } catch (IOException e) {
-                e.printStackTrace();
+                // the transaction cannot commit; it keeps its locks
+                throw new RuntimeException(e);
             }
         } else {
             rollback(tid);
         }
+        Set<PageId> changed = changedPages.remove(tid);
+        if (!commit && changed != null) {
+            // an insert of the transaction may have marked a page full in the free-space map
+            for (PageId pid : changed) {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (file instanceof HeapFile) {
+                    ((HeapFile) file).pageFreed(pid.getPageNumber());
+                }
+            }
+        }
         lockManager.releaseAllLock(tid);
+        changeLatches.remove(tid);
     }
 
     /**
@@ -188,10 +430,17 @@ public class BufferPool {
         // TODO: some code goes here
         // not necessary for lab1
         DbFile databaseFile = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> afterModified = databaseFile.insertTuple(tid, t);
-        for (Page page : afterModified) {    //用脏页替换buffer中现有的页
-            page.markDirty(true, tid);
-            pages.put(page.getId(), page);
+        ReentrantLock latch = changeLatch(tid);
+        latch.lock();
+        try {
+            List<Page> afterModified = databaseFile.insertTuple(tid, t);
+            for (Page page : afterModified) {    //用脏页替换buffer中现有的页
+                page.markDirty(true, tid);
+                shardFor(page.getId()).put(page.getId(), page);
+                dirtied(tid, page.getId());
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -215,9 +464,35 @@ public class BufferPool {
         PageId pageId = t.getRecordId().getPageId();
         int tableId = pageId.getTableId();
         DbFile databaseFile = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pages = databaseFile.deleteTuple(tid, t);
-        for (int i = 0; i < pages.size(); i++) {
-            pages.get(i).markDirty(true, tid);
+        ReentrantLock latch = changeLatch(tid);
+        latch.lock();
+        try {
+            List<Page> afterModified = databaseFile.deleteTuple(tid, t);
+            for (Page page : afterModified) {
+                page.markDirty(true, tid);
+                shardFor(page.getId()).put(page.getId(), page);
+                dirtied(tid, page.getId());
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private ReentrantLock changeLatch(TransactionId tid) {
+        return changeLatches.computeIfAbsent(tid, k -> new ReentrantLock());
+    }
+
+    // remember which transaction dirtied the page and when, and make sure the cleaner runs
+    private void dirtied(TransactionId tid, PageId pid) {
+        changedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        if (dirtySince.putIfAbsent(pid, System.currentTimeMillis()) == null) {
+            synchronized (cleanerLock) {
+                if (cleaner == null && cleanerError == null) {
+                    cleaner = new Thread(this::cleanLoop, "page cleaner");
+                    cleaner.setDaemon(true);
+                    cleaner.start();
+                }
+            }
         }
     }
 
@@ -229,27 +504,21 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // TODO: some code goes here
         // not necessary for lab1
-        LRUCache<PageId, Page>.DLinkNode head = pages.getHead();
-        LRUCache<PageId, Page>.DLinkNode tail = pages.getTail();
-        while (head != tail) {
-            Page value = head.value;
-            if (value != null && value.isDirty() != null) {
-
-                DbFile databaseFile = Database.getCatalog().getDatabaseFile(value.getId().getTableId());
+        for (BufferPoolShard shard : shards) {
+            for (Page value : shard.getPages()) {
+                if (value.isDirty() == null) {
+                    continue;
+                }
                 try {
-                    Database.getLogFile().logWrite(value.isDirty(), value.getBeforeImage(), value);
-                    Database.getLogFile().force();
                     //这里不能将脏页标记为不脏，如果这样做则当事务提交的时候，flushpage函数找不到脏页，无法将更新写入磁盘
                     //也无法setbeforeimage 详情见LogTest的78行
                     // value.markDirty(false, null);
-                    databaseFile.writePage(value);
+                    writeLogged(value, value.isDirty());
 
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-
             }
-            head = head.next;
         }
     }
 
@@ -266,17 +535,9 @@ public class BufferPool {
         // TODO: some code goes here
         // not necessary for lab1
 
-        LRUCache<PageId, Page>.DLinkNode head = pages.getHead();
-        LRUCache<PageId, Page>.DLinkNode tail = pages.getTail();
-        while (head != tail) {
-            PageId key = head.key;
-            if (key != null && key.equals(pid)) {
-                pages.remove(head);
-                return;
-            }
-            head = head.next;
-        }
-
+        shardFor(pid).remove(pid);
+        readAhead.invalidate(pid);
+        dirtySince.remove(pid);
     }
 
     /**
@@ -287,15 +548,15 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // TODO: some code goes here
         // not necessary for lab1
-        Page discard = pages.get(pid);
-        DbFile databaseFile = Database.getCatalog().getDatabaseFile(discard.getId().getTableId());
+        Page discard = shardFor(pid).get(pid);
+        if (discard == null) {
+            return;
+        }
         try {
             TransactionId dirtier = discard.isDirty();
             if (dirtier != null) {
-                Database.getLogFile().logWrite(dirtier, discard.getBeforeImage(), discard);
-                Database.getLogFile().force();
                 discard.markDirty(false, null);
-                databaseFile.writePage(discard);
+                writeLogged(discard, dirtier);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -303,39 +564,263 @@ public class BufferPool {
     }
 
     /**
-     * Write all pages of the specified transaction to disk.
+     * Write all pages of the specified transaction to disk. The pages are
+     * logged under the monitor, the log is forced once for all of them
+     * outside it, and then the pages are written, as in {@link #cleanPages}.
+     * The transaction's change latch keeps the cleaner off its pages meanwhile.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // TODO: some code goes here
         // not necessary for lab1|lab2
-        LRUCache<PageId, Page>.DLinkNode head = pages.getHead();
-        LRUCache<PageId, Page>.DLinkNode tail = pages.getTail();
-        while (head != tail) {
-            Page value = head.value;
-            if (value != null && value.isDirty() != null && value.isDirty().equals(tid)) {
-                DbFile databaseFile = Database.getCatalog().getDatabaseFile(value.getId().getTableId());
-                try {
-                    Database.getLogFile().logWrite(value.isDirty(), value.getBeforeImage(), value);
-                    Database.getLogFile().force();
-                    value.markDirty(false, null);
-                    databaseFile.writePage(value);
-                } catch (IOException e) {
-                    e.printStackTrace();
+        if (cleanerError != null) {
+            throw new IOException("the page cleaner failed", cleanerError);
+        }
+        LogFile log = Database.getLogFile();
+        ReentrantLock latch = changeLatch(tid);
+        latch.lock();
+        try {
+            awaitCleaned(tid);
+            List<CleanedPage> logged = new ArrayList<>();
+            long lastLsn = LogFile.NO_LSN;
+            synchronized (this) {
+                for (BufferPoolShard shard : shards) {
+                    for (Page page : shard.getPages()) {
+                        if (!tid.equals(page.isDirty())) {
+                            continue;
+                        }
+                        log.logWrite(tid, page.getBeforeImage(), page);
+                        // the transaction commits: the next one is logged against this image
+                        page.setBeforeImage();
+                        CleanedPage cleaned = new CleanedPage(tid, page, page.getBeforeImage(), page.getPageLSN());
+                        logged.add(cleaned);
+                        lastLsn = Math.max(lastLsn, cleaned.lsn);
+                    }
+                }
+            }
+            if (logged.isEmpty()) {
+                return;
+            }
+
+            // nothing else changes the pages meanwhile: the transaction holds their locks
+            log.force(lastLsn);
+            for (CleanedPage cleaned : logged) {
+                PageId pid = cleaned.page.getId();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(cleaned.snapshot);
+                readAhead.invalidate(pid);
+                log.pageWritten(pid, cleaned.lsn);
+                dirtySince.remove(pid);
+                cleaned.page.markDirty(false, null);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Write a page to disk after logging its change, and forcing the log up
+     * to the change's record: the write-ahead rule.
+     *
+     * @param dirtier the transaction the change is logged for
+     */
+    private void writeLogged(Page page, TransactionId dirtier) throws IOException {
+        LogFile log = Database.getLogFile();
+        log.logWrite(dirtier, page.getBeforeImage(), page);
+        log.force(page.getPageLSN());
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        readAhead.invalidate(page.getId());
+        log.pageWritten(page.getId(), page.getPageLSN());
+        dirtySince.remove(page.getId());
+    }
+
+    /**
+     * Write out the pages that have been dirty for at least the given time,
+     * while the transactions that dirtied them go on (steal.) Each page is
+     * logged and a snapshot of it taken; the log is forced once for all of
+     * them, and every snapshot that is still the latest logged change of its
+     * page is written. A page written is marked clean, and can be evicted,
+     * unless it was changed again meanwhile.
+     * <p>
+     * Only pages of transactions that {@link LogFile#rollback} can undo are
+     * written, since their changes are on disk if they abort, and not those
+     * of transactions in the middle of an insert or delete.
+     *
+     * @param minAgeMillis how long a page must have been dirty
+     * @return the number of pages written
+     */
+    public int cleanPages(long minAgeMillis) throws IOException {
+        LogFile log = Database.getLogFile();
+        long now = System.currentTimeMillis();
+        Map<TransactionId, List<Page>> old = new HashMap<>();
+        for (Map.Entry<PageId, Long> dirty : dirtySince.entrySet()) {
+            if (now - dirty.getValue() < minAgeMillis) {
+                continue;
+            }
+            Page page = shardFor(dirty.getKey()).peek(dirty.getKey());
+            TransactionId dirtier = page == null ? null : page.isDirty();
+            if (dirtier != null) {
+                old.computeIfAbsent(dirtier, k -> new ArrayList<>()).add(page);
+            }
+        }
+
+        // log the pages, holding off changes of their transaction
+        List<CleanedPage> logged = new ArrayList<>();
+        long lastLsn = LogFile.NO_LSN;
+        for (Map.Entry<TransactionId, List<Page>> pages : old.entrySet()) {
+            TransactionId tid = pages.getKey();
+            ReentrantLock latch = changeLatches.get(tid);
+            if (latch == null || !latch.tryLock()) {
+                continue;
+            }
+            try {
+                synchronized (this) {
+                    if (!log.canRollback(tid)) {
+                        continue;
+                    }
+                    for (Page page : pages.getValue()) {
+                        PageId pid = page.getId();
+                        if (shardFor(pid).peek(pid) != page || !tid.equals(page.isDirty()) || cleaning.containsKey(pid)) {
+                            continue;
+                        }
+                        log.logWrite(tid, page.getBeforeImage(), page);
+                        page.setBeforeImage();
+                        CleanedPage cleaned = new CleanedPage(tid, page, page.getBeforeImage(), page.getPageLSN());
+                        cleaning.put(pid, cleaned);
+                        logged.add(cleaned);
+                        dirtySince.remove(pid);
+                        lastLsn = Math.max(lastLsn, cleaned.lsn);
+                    }
+                }
+            } finally {
+                latch.unlock();
+            }
+        }
+        if (logged.isEmpty()) {
+            return 0;
+        }
+
+        // force the log without holding anything, then write what did not change meanwhile
+        boolean forced = false;
+        try {
+            log.force(lastLsn);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                for (CleanedPage cleaned : logged) {
+                    cleaning.remove(cleaned.page.getId());
+                }
+                notifyAll();
+            }
+        }
+        int written = 0;
+        synchronized (this) {
+            for (CleanedPage cleaned : logged) {
+                PageId pid = cleaned.page.getId();
+                if (!forced || !log.isLastChange(pid, cleaned.lsn)) {
+                    continue;
+                }
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(cleaned.snapshot);
+                readAhead.invalidate(pid);
+                log.pageWritten(pid, cleaned.lsn);
+                written++;
+                ReentrantLock latch = changeLatches.get(cleaned.tid);
+                if (!dirtySince.containsKey(pid) && latch != null && latch.tryLock()) {
+                    try {
+                        if (shardFor(pid).peek(pid) == cleaned.page && cleaned.tid.equals(cleaned.page.isDirty())) {
+                            cleaned.page.markDirty(false, null);
+                        }
+                    } finally {
+                        latch.unlock();
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * A page the cleaner has logged: the snapshot of it that was logged is
+     * written once the log is forced.
+     */
+    private static class CleanedPage {
+        final TransactionId tid;
+        final Page page;
+        final Page snapshot;
+        final long lsn;
+
+        CleanedPage(TransactionId tid, Page page, Page snapshot, long lsn) {
+            this.tid = tid;
+            this.page = page;
+            this.snapshot = snapshot;
+            this.lsn = lsn;
+        }
+    }
+
+    // wait until the cleaner has written or given up the pages of the transaction it logged
+    private synchronized void awaitCleaned(TransactionId tid) {
+        boolean interrupted = false;
+        while (isCleaning(tid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isCleaning(TransactionId tid) {
+        for (CleanedPage cleaned : cleaning.values()) {
+            if (cleaned.tid.equals(tid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The page cleaner thread: every quarter of the cleaner age, writes out
+     * the pages that have been dirty for longer. It exits once no page is
+     * dirty, or this is no longer the buffer pool of the database, and is
+     * restarted when a page is dirtied. If writing pages fails, it stops for
+     * good, and the error is thrown by {@link #flushPages} instead.
+     */
+    private void cleanLoop() {
+        while (true) {
+            long age = cleanerAge;
+            try {
+                Thread.sleep(Math.max(1, Math.min(age / 4, CLEANER_MAX_SLEEP_MILLIS)));
+            } catch (InterruptedException e) {
+                // the cleaner is never interrupted on purpose; just go on
+            }
+            synchronized (cleanerLock) {
+                if (Database.getBufferPool() != this || dirtySince.isEmpty()) {
+                    cleaner = null;
+                    return;
+                }
+            }
+            try {
+                cleanPages(age);
+            } catch (IOException e) {
+                synchronized (cleanerLock) {
+                    cleanerError = e;
+                    cleaner = null;
                 }
+                return;
             }
-            head = head.next;
         }
     }
 
     private synchronized void rollback(TransactionId transactionId) {
-        LRUCache<PageId, Page>.DLinkNode head = pages.getHead();
-        LRUCache<PageId, Page>.DLinkNode tail = pages.getTail();
-        while (head != tail) {
-            Page value = head.value;
-            LRUCache<PageId, Page>.DLinkNode tmp = head.next;
-            if (value != null && value.isDirty() != null && value.isDirty().equals(transactionId)) {
+        for (BufferPoolShard shard : shards) {
+            for (Page value : shard.getPages()) {
+                if (value.isDirty() == null || !value.isDirty().equals(transactionId)) {
+                    continue;
+                }
                 //删掉脏页
-                pages.remove(head);
+                shard.remove(value.getId());
+                dirtySince.remove(value.getId());
                 try {
                     //重新读原来的页
                     Page page = Database.getBufferPool().getPage(transactionId, value.getId(), Permissions.READ_ONLY);
@@ -346,35 +831,6 @@ public class BufferPool {
                     e.printStackTrace();
                 }
             }
-            head = tmp;
-        }
-    }
-
-    /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     */
-    private synchronized void evictPage() throws DbException {
-        // TODO: some code goes here
-        // not necessary for lab1
-        //如果为脏页则不能替换
-        Page value = pages.getTail().prev.value;
-        //  如果是脏页
-        if (value != null && value.isDirty() != null) {
-            LRUCache<PageId, Page>.DLinkNode head = pages.getHead();
-            LRUCache<PageId, Page>.DLinkNode tail = pages.getTail();
-            tail = tail.prev;
-            while (head != tail) {
-                Page page = tail.value;
-                if (page != null && page.isDirty() == null) {
-                    pages.remove(tail);
-                    return;
-                }
-                tail = tail.prev;
-            }
-        } else {
-            //不是脏页没改过，不需要写磁盘
-            pages.discard();
         }
     }
 
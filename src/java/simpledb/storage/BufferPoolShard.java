@@ -0,0 +1,246 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One partition of the {@link BufferPool}. Every PageId hashes to exactly
+ * one shard, and each shard owns its own replacement state, latch and share
+ * of the pool capacity, so that threads touching pages of different shards
+ * never contend with each other.
+ * <p>
+ * Pages live in a fixed array of frames. Replacement uses the CLOCK
+ * algorithm: every access sets the frame's reference bit, and the clock hand
+ * sweeps the frames, clearing reference bits until it finds a frame that is
+ * unreferenced, unpinned and clean. A frame with a non-zero pin count is in
+ * use by an operator and is never evicted; dirty frames are never evicted
+ * either (NO STEAL). Accesses do not allocate.
+ * <p>
+ * All methods latch on the shard itself. The latch is never held while
+ * reading a page from disk or while acquiring a page lock.
+ *
+ * @Threadsafe
+ */
+class BufferPoolShard {
+
+    private final int capacity;
+    private final Page[] frames;
+    private final int[] pinCounts;
+    private final boolean[] refBits;
+    private final Map<PageId, Integer> frameTable;
+    private final int[] freeFrames;
+    private int numFree;
+    private int hand;
+
+    /**
+     * @param capacity the maximum number of pages cached in this shard
+     */
+    BufferPoolShard(int capacity) {
+        this.capacity = capacity;
+        this.frames = new Page[capacity];
+        this.pinCounts = new int[capacity];
+        this.refBits = new boolean[capacity];
+        this.frameTable = new HashMap<>(capacity * 2);
+        this.freeFrames = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeFrames[i] = capacity - 1 - i;
+        }
+        this.numFree = capacity;
+        this.hand = 0;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    synchronized int size() {
+        return capacity - numFree;
+    }
+
+    /**
+     * @return the cached page with the given id, or null if it is not resident
+     */
+    synchronized Page get(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        if (frame == null) {
+            return null;
+        }
+        refBits[frame] = true;
+        return frames[frame];
+    }
+
+    /**
+     * @return the cached page with the given id, or null if it is not
+     * resident; does not set its reference bit
+     */
+    synchronized Page peek(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        return frame == null ? null : frames[frame];
+    }
+
+    /**
+     * @return whether the page is resident; does not set its reference bit
+     */
+    synchronized boolean contains(PageId pid) {
+        return frameTable.containsKey(pid);
+    }
+
+    /**
+     * Like {@link #get}, but also pins the page if it is resident.
+     */
+    synchronized Page pin(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        if (frame == null) {
+            return null;
+        }
+        refBits[frame] = true;
+        pinCounts[frame]++;
+        return frames[frame];
+    }
+
+    /**
+     * Drop one pin on the page. Does nothing if the page is not resident or
+     * not pinned.
+     */
+    synchronized void unpin(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        if (frame != null && pinCounts[frame] > 0) {
+            pinCounts[frame]--;
+        }
+    }
+
+    /**
+     * @return the pin count of the page, or 0 if it is not resident
+     */
+    synchronized int getPinCount(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        return frame == null ? 0 : pinCounts[frame];
+    }
+
+    /**
+     * Install a page freshly read from disk, unless another thread has
+     * installed the same page in the meantime.
+     *
+     * @param pin  whether to pin the resident page
+     * @param cold install a new page with its reference bit clear, so that it
+     *             is the first candidate for eviction (see {@link BufferRing})
+     * @return the page that is resident after the call
+     * @throws DbException if every frame is pinned or dirty
+     */
+    synchronized Page putIfAbsent(PageId pid, Page page, boolean pin, boolean cold) throws DbException {
+        Integer frame = frameTable.get(pid);
+        if (frame == null) {
+            frame = allocateFrame();
+            install(frame, pid, page);
+            refBits[frame] = !cold;
+        } else {
+            refBits[frame] = true;
+        }
+        if (pin) {
+            pinCounts[frame]++;
+        }
+        return frames[frame];
+    }
+
+    /**
+     * Install a page, replacing any existing version of it. The pin count of
+     * an existing version is kept.
+     *
+     * @throws DbException if the page is not resident and every frame is
+     *                     pinned or dirty
+     */
+    synchronized void put(PageId pid, Page page) throws DbException {
+        Integer frame = frameTable.get(pid);
+        if (frame == null) {
+            install(allocateFrame(), pid, page);
+        } else {
+            frames[frame] = page;
+            refBits[frame] = true;
+        }
+    }
+
+    synchronized void remove(PageId pid) {
+        Integer frame = frameTable.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            pinCounts[frame] = 0;
+            refBits[frame] = false;
+            freeFrames[numFree++] = frame;
+        }
+    }
+
+    /**
+     * Evict the page if nobody has referenced it since it was installed cold,
+     * and it is neither pinned nor dirty. Used to recycle {@link BufferRing} frames.
+     */
+    synchronized void evictIfCold(PageId pid) {
+        Integer frame = frameTable.get(pid);
+        if (frame != null && !refBits[frame] && pinCounts[frame] == 0 && frames[frame].isDirty() == null) {
+            remove(pid);
+        }
+    }
+
+    /**
+     * @return a snapshot of the pages resident in this shard
+     */
+    synchronized List<Page> getPages() {
+        List<Page> res = new ArrayList<>(size());
+        for (Page page : frames) {
+            if (page != null) {
+                res.add(page);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Evicts one page of this shard, leaving its frame free.
+     *
+     * @throws DbException if every frame is pinned or dirty
+     */
+    synchronized void evictPage() throws DbException {
+        freeFrames[numFree++] = evictFrame();
+    }
+
+    private void install(int frame, PageId pid, Page page) {
+        frames[frame] = page;
+        pinCounts[frame] = 0;
+        refBits[frame] = true;
+        frameTable.put(pid, frame);
+    }
+
+    private int allocateFrame() throws DbException {
+        if (numFree > 0) {
+            return freeFrames[--numFree];
+        }
+        return evictFrame();
+    }
+
+    /**
+     * Advance the clock hand until an unreferenced, unpinned, clean frame is
+     * found. Two full sweeps are enough: the first clears every reference bit.
+     */
+    private int evictFrame() throws DbException {
+        for (int i = 0; i < 2 * capacity; i++) {
+            int frame = hand;
+            hand = (hand + 1) % capacity;
+            Page page = frames[frame];
+            if (page == null || pinCounts[frame] > 0 || page.isDirty() != null) {
+                continue;
+            }
+            if (refBits[frame]) {
+                refBits[frame] = false;
+                continue;
+            }
+            //不是脏页没改过，不需要写磁盘
+            frameTable.remove(page.getId());
+            frames[frame] = null;
+            return frame;
+        }
+        throw new DbException("all " + capacity + " buffer frames are pinned or dirty");
+    }
+}
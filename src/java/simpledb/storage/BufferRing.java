@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+/**
+ * A small private ring of buffer frames used by a large sequential scan, in
+ * the spirit of PostgreSQL's buffer access strategies.
+ * <p>
+ * Pages that a scan reads from disk through a ring are installed "cold" (with
+ * their CLOCK reference bit clear) and remembered in the ring. Once the ring
+ * wraps around, the page read {@link #size()} misses earlier is evicted again,
+ * unless someone else has referenced it since, pinned it or dirtied it. A scan
+ * over a table much larger than the buffer pool therefore recycles a handful
+ * of frames instead of flushing the working set of other transactions.
+ * <p>
+ * A ring belongs to one iterator and is not thread-safe.
+ *
+ * @see BufferPool#scanRingFor(int)
+ */
+public class BufferRing {
+
+    private final PageId[] slots;
+    private int next;
+
+    /**
+     * @param size the number of frames the ring recycles
+     */
+    public BufferRing(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("ring size must be positive");
+        }
+        this.slots = new PageId[size];
+        this.next = 0;
+    }
+
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Remember a page that was read through this ring.
+     *
+     * @return the page that falls out of the ring, or null if the ring has not
+     *         wrapped around yet
+     */
+    PageId add(PageId pid) {
+        PageId displaced = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return displaced;
+    }
+}
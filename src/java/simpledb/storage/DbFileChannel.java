@@ -0,0 +1,136 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A long-lived channel on the file backing a {@link DbFile}.
+ * <p>
+ * The channel is opened on first use and then kept open, so that page reads
+ * and writes do not pay for an open/seek/close per page. All I/O is
+ * positional ({@link FileChannel#read(ByteBuffer, long)} and
+ * {@link FileChannel#write(ByteBuffer, long)}), which does not move a shared
+ * file pointer and is therefore safe to issue from several threads at once.
+ * A channel closed under a reader, such as by an interrupt, is reopened on
+ * the next use.
+ * <p>
+ * The length of the file is cached and grown by writes past the end, so that
+ * bounds checks on page reads do not stat the file. A file extended from
+ * outside this channel is seen by {@link #refreshSize()}, and by
+ * {@link #covers(long)} when it would otherwise fail.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+    // the length of the file, or -1 until it is first asked for. written under this
+    private volatile long length = -1;
+
+    public DbFileChannel(File f) {
+        this.f = f;
+    }
+
+    /**
+     * @return the underlying channel, opening it if needed
+     */
+    public FileChannel getChannel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = open();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    private FileChannel open() throws IOException {
+        try {
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        } catch (IOException e) {
+            // read-only files can still be scanned
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Read exactly buf.length bytes starting at the given file offset.
+     *
+     * @throws EOFException if the file ends before buf is full
+     */
+    public void read(byte[] buf, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        FileChannel ch = getChannel();
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, position + bb.position());
+            if (n < 0) {
+                throw new EOFException("read past end of " + f.getName());
+            }
+        }
+    }
+
+    /**
+     * Write all of data starting at the given file offset, extending the file
+     * if needed.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        FileChannel ch = getChannel();
+        while (bb.hasRemaining()) {
+            ch.write(bb, position + bb.position());
+        }
+        long end = position + data.length;
+        if (end > length) {
+            synchronized (this) {
+                // still unknown: the next size() asks the file, which has the write
+                if (length >= 0 && end > length) {
+                    length = end;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the length of the file, in bytes, as of the last write through
+     *         this channel or the last {@link #refreshSize()}
+     */
+    public long size() throws IOException {
+        long len = length;
+        return len < 0 ? refreshSize() : len;
+    }
+
+    /**
+     * @return the current length of the file, in bytes, asking the file
+     */
+    public synchronized long refreshSize() throws IOException {
+        // files only grow, so a stale length is never longer than the file
+        length = Math.max(length, getChannel().size());
+        return length;
+    }
+
+    /**
+     * @return whether the file is at least end bytes long; only asks the
+     *         file if the cached length is shorter
+     */
+    public boolean covers(long end) throws IOException {
+        return end <= size() || end <= refreshSize();
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        length = -1;
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Tracks which pages of a {@link HeapFile} may have a free slot, so that an
+ * insert can go straight to a candidate page instead of scanning the file.
+ * <p>
+ * The map is a hint: a set bit means "probably has room", and the inserter
+ * checks the page and clears the bit when the page turns out to be full.
+ * Pages the map has never seen (e.g. appended by another writer) count as
+ * candidates. Stale bits can therefore cost an extra page visit, but never
+ * a lost insert.
+ * <p>
+ * The bitmap is kept in memory and written through to a small side file
+ * next to the heap file (4 bytes of page count followed by one bit per page),
+ * one byte per change, so that a reopened table does not start from scratch.
+ * The side file of a heap file in the temporary directory is deleted when
+ * the JVM exits, like the heap file itself usually is.
+ * <p>
+ * A page is marked full by the insert that fills it, before that insert
+ * commits; if it aborts, {@link BufferPool} marks the page free again.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    private static final int HEADER_SIZE = 4;
+
+    private final DbFileChannel file;
+    private final BitSet free;
+    private int numPages;
+
+    /**
+     * Load the map persisted for the given heap file, if any.
+     *
+     * @param heapFile the file backing the heap file
+     */
+    FreeSpaceMap(File heapFile) {
+        File side = new File(heapFile.getPath() + ".fsm");
+        if (isTemporary(heapFile)) {
+            side.deleteOnExit();
+        }
+        this.file = new DbFileChannel(side);
+        BitSet loaded = new BitSet();
+        int loadedPages = 0;
+        try {
+            // opening the channel would create the side file
+            long size = side.exists() ? file.size() : 0;
+            if (size >= HEADER_SIZE) {
+                byte[] data = new byte[(int) size];
+                file.read(data, 0);
+                ByteBuffer bb = ByteBuffer.wrap(data);
+                int n = bb.getInt();
+                if (n >= 0 && HEADER_SIZE + (n + 7) / 8 <= size) {
+                    loadedPages = n;
+                    loaded = BitSet.valueOf(ByteBuffer.wrap(data, HEADER_SIZE, (n + 7) / 8));
+                }
+            }
+        } catch (IOException e) {
+            // start from scratch: every page is a candidate
+        }
+        this.free = loaded;
+        this.numPages = loadedPages;
+    }
+
+    private static boolean isTemporary(File f) {
+        String tmp = System.getProperty("java.io.tmpdir");
+        return tmp != null && f.getAbsoluteFile().toPath().normalize()
+                .startsWith(new File(tmp).getAbsoluteFile().toPath().normalize());
+    }
+
+    /**
+     * @param from     the first page to consider
+     * @param numPages the current number of pages of the heap file
+     * @return the first page at or after from that may have a free slot, or -1
+     */
+    synchronized int nextFree(int from, int numPages) {
+        grow(numPages);
+        int p = free.nextSetBit(from);
+        return p >= 0 && p < numPages ? p : -1;
+    }
+
+    synchronized void markFull(int pgNo) {
+        grow(pgNo + 1);
+        if (free.get(pgNo)) {
+            free.clear(pgNo);
+            persist(pgNo);
+        }
+    }
+
+    synchronized void markFree(int pgNo) {
+        grow(pgNo + 1);
+        if (!free.get(pgNo)) {
+            free.set(pgNo);
+            persist(pgNo);
+        }
+    }
+
+    /**
+     * Pages past the end of the map are unknown and count as candidates.
+     */
+    private void grow(int pages) {
+        if (pages <= numPages) {
+            return;
+        }
+        free.set(numPages, pages);
+        persistRange(numPages / 8, (pages - 1) / 8);
+        numPages = pages;
+        try {
+            file.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, numPages).array(), 0);
+        } catch (IOException e) {
+            // the map is only a hint; losing it costs extra page visits
+        }
+    }
+
+    private void persist(int pgNo) {
+        persistRange(pgNo / 8, pgNo / 8);
+    }
+
+    /**
+     * Write bytes first..last (inclusive) of the bitmap to the side file.
+     */
+    private void persistRange(int first, int last) {
+        byte[] bytes = new byte[last - first + 1];
+        for (int b = first; b <= last; b++) {
+            byte v = 0;
+            for (int i = 0; i < 8; i++) {
+                if (free.get(b * 8 + i)) {
+                    v |= (byte) (1 << i);
+                }
+            }
+            bytes[b - first] = v;
+        }
+        try {
+            file.write(bytes, HEADER_SIZE + (long) first);
+        } catch (IOException e) {
+            // the map is only a hint; losing it costs extra page visits
+        }
+    }
+}
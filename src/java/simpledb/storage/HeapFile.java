@@ -8,7 +8,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -27,6 +29,9 @@ public class HeapFile implements DbFile {
 
     private File f;
     private TupleDesc td;
+    private final DbFileChannel channel;  //长期持有的文件句柄，避免每次读写页都打开关闭文件
+    private volatile MappedDbFile mapped;  //非空时读页走内存映射
+    private FreeSpaceMap freeSpaceMap;  //记录可能有空闲slot的页，第一次插入时加载
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -38,6 +43,7 @@ public class HeapFile implements DbFile {
         // Done by Huangyihang in 2023-02-07 20:30:17
         this.f=f;
         this.td=td;
+        this.channel = new DbFileChannel(f);
     }
 
     /**
@@ -85,28 +91,43 @@ public class HeapFile implements DbFile {
         int tableId = pid.getTableId();
         int pageSize = BufferPool.getPageSize();
         try{
-            RandomAccessFile randomAccessFile = new RandomAccessFile(this.f,"r");
-            if((pgNo+1)*pageSize>f.length()){
+            if(pgNo<0 || !channel.covers((long)(pgNo+1)*pageSize)){
                 throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
             }
-            byte[] data = new byte[pageSize];
-            randomAccessFile.seek((long)pgNo*pageSize);
-            int read = randomAccessFile.read(data,0,pageSize);
-            if(read==-1)
-                throw new NoSuchElementException("no such page");
-            if(read!=pageSize){
-                throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
+            MappedDbFile m = mapped;
+            if (m != null) {
+                ByteBuffer view = m.slice((long)pgNo*pageSize, pageSize);
+                if (view != null) {
+                    return new HeapPage((HeapPageId)pid, view);
+                }
             }
-            randomAccessFile.close();
+            byte[] data = new byte[pageSize];
+            channel.read(data, (long)pgNo*pageSize);
             return new HeapPage((HeapPageId)pid,data);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
     }
 
+    /**
+     * Switch the memory-mapped read path on or off. While it is on, pages are
+     * decoded directly out of a read-only mapping of the file instead of being
+     * read into a fresh buffer; writes still go through the file channel. Best
+     * suited to read-mostly tables.
+     *
+     * @see MappedDbFile
+     */
+    public void setMemoryMapped(boolean on) {
+        mapped = on ? new MappedDbFile(channel) : null;
+    }
+
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // TODO: some code goes here
@@ -115,13 +136,7 @@ public class HeapFile implements DbFile {
         HeapPageId heapPageId = (HeapPageId) page.getId();
         int size = BufferPool.getPageSize();
         int pageNumber = heapPageId.getPageNumber();
-        byte[] pageData = page.getPageData();
-        try(RandomAccessFile randomAccessFile = new RandomAccessFile(f, "rw")) {
-            randomAccessFile.seek(pageNumber * size);
-            randomAccessFile.write(pageData);
-        }catch (IOException e){
-            e.printStackTrace();
-        }
+        channel.write(page.getPageData(), (long) pageNumber * size);
     }
 
     /**
@@ -130,10 +145,31 @@ public class HeapFile implements DbFile {
     public int numPages() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-07 21:15:58
-        long length = this.f.length();
+        long length;
+        try {
+            // pages may have been appended from outside the channel
+            length = channel.refreshSize();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         return ((int) Math.ceil(length * 1.0 / BufferPool.getPageSize()));
     }
 
+    /**
+     * Mark a page as possibly having room again, after a transaction that
+     * changed it aborted: an insert that filled the page marked it full.
+     */
+    void pageFreed(int pgNo) {
+        freeSpaceMap().markFree(pgNo);
+    }
+
+    private synchronized FreeSpaceMap freeSpaceMap() {
+        if (freeSpaceMap == null) {
+            freeSpaceMap = new FreeSpaceMap(f);
+        }
+        return freeSpaceMap;
+    }
+
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
@@ -145,8 +181,10 @@ public class HeapFile implements DbFile {
         List<Page> res = new ArrayList<>();
         HeapPage page;
         HeapPageId heapPageId;
-        int i;
-        for (i = 0; i < numPages(); i++) {
+        FreeSpaceMap fsm = freeSpaceMap();
+        int numPages = numPages();
+        //只访问空闲空间映射中可能有空位的页，而不是从头扫描整个文件
+        for (int i = fsm.nextFree(0, numPages); i >= 0; i = fsm.nextFree(i + 1, numPages)) {
             heapPageId = new HeapPageId(getId(), i);
             page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
 
@@ -156,13 +194,20 @@ public class HeapFile implements DbFile {
             }
             if (page.getNumUnusedSlots() == 0) {
                 Database.getBufferPool().unsafeReleasePage(tid, heapPageId);
+                fsm.markFull(i);
                 continue;
             }
+            //修改页之前升级为写锁
+            page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
             page.insertTuple(t);
             page.markDirty(true, tid);
+            if (page.getNumUnusedSlots() == 0) {
+                fsm.markFull(i);
+            }
             res.add(page);
             return res;
         }
+        int i = numPages;
         heapPageId = new HeapPageId(getId(), i);
         page = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
         //-------注：这两句话不能颠倒位置，现在操作系统内存中插入tuple然后写入磁盘，
@@ -170,6 +215,7 @@ public class HeapFile implements DbFile {
         page.insertTuple(t);
         writePage(page);
         //-------
+        fsm.markFree(i);
         res.add(page);
         return res;
 
@@ -187,6 +233,7 @@ public class HeapFile implements DbFile {
             throw  new DbException("null");
         }
         heapPage.deleteTuple(t);
+        freeSpaceMap().markFree(heapPageId.getPageNumber());
         res.add(heapPage);
         return res;
     }
@@ -197,6 +244,34 @@ public class HeapFile implements DbFile {
         // Done by Huangyihang in 2023-02-08 00:00:11
         return new HeapFileIterator(tid,Permissions.READ_ONLY);
     }
+
+    /**
+     * Like {@link #iterator}, but next() returns a single reusable tuple view
+     * that is only valid until the following call to next(). Meant for scans
+     * that read each tuple once, such as statistics collection.
+     *
+     * @see HeapPage#viewIterator()
+     */
+    public DbFileIterator viewIterator(TransactionId tid) {
+        return new HeapFileIterator(tid,Permissions.READ_ONLY,true);
+    }
+
+    /**
+     * Like {@link #viewIterator(TransactionId)}, but only over pages
+     * [firstPage, endPage), e.g. one worker's share of a parallel scan. Pages
+     * appended after the iterator is opened are not seen.
+     */
+    public DbFileIterator viewIterator(TransactionId tid, int firstPage, int endPage) {
+        return new HeapFileIterator(tid,Permissions.READ_ONLY,true,firstPage,endPage);
+    }
+
+    /**
+     * Like {@link #iterator}, but only over pages [firstPage, endPage), for
+     * parallel scans that keep the tuples they read.
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        return new HeapFileIterator(tid,Permissions.READ_ONLY,false,firstPage,endPage);
+    }
     /**
      * 辅助类
      * 一页一页的读和遍历文件
@@ -206,11 +281,29 @@ public class HeapFile implements DbFile {
         Permissions permissions;
         BufferPool bufferPool =Database.getBufferPool();
         Iterator<Tuple> iterator;  //页内迭代器
+        HeapPageId pinned;  //当前页保持pin住，避免遍历过程中被换出
+        BufferRing ring;  //大表扫描只使用少量私有frame，避免冲掉buffer pool中的热页
+        ReadAhead.Stream stream;  //本次扫描自己的预读状态，与同一张表上的其他扫描互不干扰
         int num = 0;
+        int numPages = 0;  //打开时缓存页数，只在扫描到末尾时重新获取文件长度
+        final boolean views;  //为true时返回可复用的tuple视图
+        final int firstPage;  //遍历的页范围[firstPage, endPage)
+        final int endPage;  //-1表示直到文件末尾，包括遍历过程中追加的页
 
         public HeapFileIterator(TransactionId tid,Permissions permissions){
+            this(tid,permissions,false);
+        }
+
+        public HeapFileIterator(TransactionId tid,Permissions permissions,boolean views){
+            this(tid,permissions,views,0,-1);
+        }
+
+        public HeapFileIterator(TransactionId tid,Permissions permissions,boolean views,int firstPage,int endPage){
             this.tid = tid;
             this.permissions = permissions;
+            this.views = views;
+            this.firstPage = firstPage;
+            this.endPage = endPage;
         }
 
         /**
@@ -220,13 +313,22 @@ public class HeapFile implements DbFile {
          */
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            num = 0;
-            HeapPageId heapPageId = new HeapPageId(getId(), num);
-            HeapPage page = (HeapPage)this.bufferPool.getPage(tid, heapPageId, permissions);
+            int filePages = numPages();
+            num = firstPage;
+            numPages = endPage < 0 ? filePages : Math.min(endPage, filePages);
+            //按整个文件的大小决定是否使用scan ring：并行扫描的各部分合起来读完整个文件
+            ring = bufferPool.scanRingFor(filePages);
+            endScan();
+            stream = bufferPool.readAheadStream();
+            if(endPage >= 0 && num >= numPages){
+                iterator = Collections.emptyIterator();
+                return;
+            }
+            HeapPage page = pinPage(new HeapPageId(getId(), num));
             if(page==null){
                 throw  new DbException("page null");
             }else{
-                iterator = page.iterator();
+                iterator = views ? page.viewIterator() : page.iterator();
             }
         }
 
@@ -239,22 +341,49 @@ public class HeapFile implements DbFile {
         public boolean nextPage() throws DbException, TransactionAbortedException {
             while(true){
                 num++;
-                if(num>=numPages()){
-                    return false;
+                if(num>=numPages){
+                    //可能有新追加的页
+                    numPages = endPage < 0 ? numPages() : numPages;
+                    if(num>=numPages){
+                        unpin();
+                        return false;
+                    }
                 }
-                HeapPageId heapPageId = new HeapPageId(getId(), num);
-                HeapPage page = (HeapPage)bufferPool.getPage(tid,heapPageId,permissions);
+                HeapPage page = pinPage(new HeapPageId(getId(), num));
                 if(page==null){
                     continue;
                 }
-                iterator = page.iterator();
+                iterator = views ? page.viewIterator() : page.iterator();
                 if(iterator.hasNext()){
                     return true;
                 }
             }
         }
 
+        /**
+         * Unpin the previous page before pinning the next one, so that a scan
+         * never holds more than one frame.
+         */
+        private HeapPage pinPage(HeapPageId heapPageId) throws DbException, TransactionAbortedException {
+            unpin();
+            HeapPage page = (HeapPage)bufferPool.pinPage(tid, heapPageId, permissions, ring, stream);
+            pinned = heapPageId;
+            return page;
+        }
+
+        private void endScan() {
+            if (stream != null) {
+                bufferPool.endScan(stream);
+                stream = null;
+            }
+        }
 
+        private void unpin() {
+            if (pinned != null) {
+                bufferPool.unpinPage(pinned);
+                pinned = null;
+            }
+        }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
@@ -283,6 +412,9 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpin();
+            endScan();
+            ring = null;
             iterator = null;
         }
     }
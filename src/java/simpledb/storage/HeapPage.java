@@ -7,27 +7,39 @@ import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its raw bytes and decodes tuples lazily, by slot and field
+ * offset, when they are asked for (see {@link HeapTuple}). The buffer is
+ * copied only on the first write after it has been shared: the bytes a page
+ * was read with, or that tuples handed out by {@link #iterator()} still point
+ * to, are never written. The before-image is captured the same way, when the
+ * page is first modified, instead of cloning every page that is read.
  *
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
+    final int tupleSize;
+    final int[] fieldOffsets;
 
-    byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    ByteBuffer data;  //页的原始字节，按slot和字段偏移按需解码
+    boolean shared;  //data可能被别人引用（读入的原始缓冲区或已返回的tuple），写之前需复制
+
+    ByteBuffer oldData;  //修改前的页内容，null表示与当前内容相同
+    private final Object oldDataLock = new Object();
+    private volatile long pageLsn = LogFile.NO_LSN;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -47,27 +59,49 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
-        this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this(id, ByteBuffer.wrap(data));
+    }
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+    /**
+     * Create a HeapPage directly over a buffer holding the page bytes, e.g. a
+     * slice of a memory-mapped file (see {@link MappedDbFile}). The buffer is
+     * not copied; the page copies it before its first modification.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+    /**
+     * Create a HeapPage of a file that is not in the catalog, such as a
+     * temporary {@link SpillFile}, whose schema is given explicitly.
+     *
+     * @see #HeapPage(HeapPageId, ByteBuffer)
+     */
+    public HeapPage(HeapPageId id, TupleDesc td, ByteBuffer data) throws IOException {
+        this.pid = id;
+        this.td = td;
+        this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int i = 1; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
         }
-        dis.close();
 
-        setBeforeImage();
+        int pageSize = BufferPool.getPageSize();
+        if (data.remaining() >= pageSize) {
+            ByteBuffer view = data.duplicate();
+            view.limit(view.position() + pageSize);
+            this.data = view.slice();
+        } else {
+            // short buffers are padded with zeroes
+            byte[] padded = new byte[pageSize];
+            data.duplicate().get(padded, 0, data.remaining());
+            this.data = ByteBuffer.wrap(padded);
+        }
+        this.shared = true;
     }
 
     /**
@@ -78,8 +112,15 @@ public class HeapPage implements Page {
     private int getNumTuples() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-07 19:55:08
-        return (int) Math.floor((BufferPool.getPageSize() * 8 * 1.0) / ( this.td.getSize() * 8 + 1));
+        return slotsPerPage(this.td);
+
+    }
 
+    /**
+     * @return the number of tuple slots on a page of tuples of the given schema
+     */
+    public static int slotsPerPage(TupleDesc td) {
+        return (int) Math.floor((BufferPool.getPageSize() * 8 * 1.0) / ( td.getSize() * 8 + 1));
     }
 
     /**
@@ -101,9 +142,14 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef;
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
+                if (oldDataRef == null) {
+                    // unmodified since the last setBeforeImage: share the current bytes
+                    oldDataRef = data;
+                    shared = true;
+                }
             }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -116,10 +162,37 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
         }
     }
 
+    /**
+     * Make data private and writable before a modification. The first
+     * modification after setBeforeImage() keeps the old bytes as the
+     * before-image.
+     */
+    private void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                // a read-only buffer is a file mapping, which a later flush would change
+                oldData = data.isReadOnly() ? copyOf(data) : data;
+                data = copyOf(data);
+                shared = false;
+            } else if (shared) {
+                data = copyOf(data);
+                shared = false;
+            }
+        }
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer buf) {
+        byte[] copy = new byte[buf.capacity()];
+        ByteBuffer src = buf.duplicate();
+        src.clear();
+        src.get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -130,37 +203,23 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot in the page buffer
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Decode a single field of the tuple in the given slot, without building
+     * the rest of the tuple.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int fieldIndex) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
         }
-
-        return t;
+        return td.getFieldType(fieldIndex).parse(data, slotOffset(slotId) + fieldOffsets[fieldIndex]);
     }
 
     /**
@@ -175,64 +234,11 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        byte[] res = new byte[src.remaining()];
+        src.get(res);
+        return res;
     }
 
     /**
@@ -262,14 +268,21 @@ public class HeapPage implements Page {
         // not necessary for lab1
         // Done by Huangyihang in 2023-02-17 10:51:22
         RecordId recordId = t.getRecordId();
+        if (recordId == null || !this.pid.equals(recordId.getPageId())) {
+            throw new DbException("tuple is not in this page");
+        }
         int slotId = recordId.getTupleNumber();
-        if (recordId.getPageId() != this.pid || !isSlotUsed(slotId)) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
             throw new DbException("tuple is not in this page");
         }
+        prepareWrite();
         // 将tuple对应的slot置为0
         markSlotUsed(slotId, false);
-        // 将slot对应的tuple置为null
-        tuples[slotId] = null;
+        // 空slot的字节清零，与序列化格式保持一致
+        int off = slotOffset(slotId);
+        for (int i = 0; i < tupleSize; i++) {
+            data.put(off + i, (byte) 0);
+        }
 
     }
 
@@ -288,8 +301,12 @@ public class HeapPage implements Page {
         if (td.equals(t.getTupleDesc())) {
             for (int i = 0; i < numSlots; i++) {
                 if (!isSlotUsed(i)) {
+                    byte[] bytes = serialize(t);
+                    prepareWrite();
                     markSlotUsed(i, true);
-                    tuples[i] = t;
+                    ByteBuffer dst = data.duplicate();
+                    dst.position(slotOffset(i));
+                    dst.put(bytes);
                     t.setRecordId(new RecordId(pid, i));
                     return;
                 }
@@ -299,6 +316,20 @@ public class HeapPage implements Page {
         throw new DbException("insertTuple: no empty slots or tupledesc is mismatch");
     }
 
+    private byte[] serialize(Tuple t) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("insertTuple: could not serialize tuple: " + e.getMessage());
+        }
+        return baos.toByteArray();
+    }
+
     private boolean dirty;
     private TransactionId transactionId;
     /**
@@ -329,19 +360,42 @@ public class HeapPage implements Page {
         return null;
     }
 
+    public long getPageLSN() {
+        return pageLsn;
+    }
+
+    public void setPageLSN(long lsn) {
+        pageLsn = lsn;
+    }
+
+    public int getSlotBitmapOffset() {
+        return 0;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public int getSlotSize() {
+        return tupleSize;
+    }
+
     /**
      * Returns the number of unused (i.e., empty) slots on this page.
      */
     public int getNumUnusedSlots() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-07 20:04:32
-        int cnt = 0;
-        for (int i = 0; i < this.numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                ++cnt;
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; i++) {
+            used += Integer.bitCount(data.get(i) & 0xff);
+        }
+        for (int i = numSlots / 8 * 8; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                ++used;
             }
         }
-        return cnt;
+        return numSlots - used;
     }
 
     /**
@@ -351,13 +405,8 @@ public class HeapPage implements Page {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-07 20:07:54
         // 根据提示用位图实现
-//        int quot = i / 8;
-//        int remain = i % 8;
-//        int bitidx = this.header[quot];
-//        int bit = (bitidx >> remain) & 1;
-//        return bit == 1;
         int index = i / 8, offset = i % 8;
-        return (header[index] & (1 << offset)) != 0;
+        return (data.get(index) & (1 << offset)) != 0;
     }
 
     /**
@@ -371,10 +420,11 @@ public class HeapPage implements Page {
             int offset = i % 8;
 
             byte mask = (byte) (0x1 << offset);
+            byte b = data.get(hdNo);
             if (value) {
-                header[hdNo] |= mask;
+                data.put(hdNo, (byte) (b | mask));
             } else {
-                header[hdNo] &= ~mask;
+                data.put(hdNo, (byte) (b & ~mask));
             }
         }
     }
@@ -386,14 +436,65 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-07 20:28:51
-        ArrayList<Tuple> filledTuples = new ArrayList<>();
-        for (int i = 0; i < this.numSlots; i++) {
-            if (isSlotUsed(i)) {
-                filledTuples.add(tuples[i]);
+        return new SlotIterator(false);
+    }
+
+    /**
+     * Like {@link #iterator()}, but every call to next() returns the same tuple
+     * object, moved to the next used slot. Meant for scans that look at each
+     * tuple once and do not keep it; the tuple is only valid until the next
+     * call to next().
+     */
+    public Iterator<Tuple> viewIterator() {
+        return new SlotIterator(true);
+    }
+
+    /**
+     * Iterates the used slots of the page as it was when the iterator was
+     * created; later modifications of the page copy the buffer first.
+     */
+    private class SlotIterator implements Iterator<Tuple> {
+        private final ByteBuffer buf;
+        private final HeapTuple view;
+        private int slot;
+
+        SlotIterator(boolean reuse) {
+            synchronized (oldDataLock) {
+                buf = data;
+                shared = true;
+            }
+            view = reuse ? new HeapTuple(td, fieldOffsets) : null;
+            slot = advance(0);
+        }
+
+        private int advance(int from) {
+            int i = from;
+            while (i < numSlots && (buf.get(i / 8) & (1 << (i % 8))) == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return slot < numSlots;
+        }
+
+        @Override
+        public Tuple next() {
+            if (slot >= numSlots) {
+                throw new NoSuchElementException();
             }
+            HeapTuple t = view != null ? view : new HeapTuple(td, fieldOffsets);
+            t.moveTo(buf, slotOffset(slot), new RecordId(pid, slot));
+            slot = advance(slot + 1);
+            return t;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return (Iterator<Tuple>) filledTuples.iterator();
     }
 
 }
-
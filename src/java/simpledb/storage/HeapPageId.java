@@ -52,8 +52,8 @@ public class HeapPageId implements PageId {
     public int hashCode() {
         // TODO: some code goes here
         // Done by Huangyihang in 2023-02-07 18:05:07
-        String hash = ""+this.tableId+this.pgNo;
-        return hash.hashCode();
+        // avoid allocating on every buffer pool lookup
+        return 31 * this.tableId + this.pgNo;
     }
 
     /**
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A tuple that lives in the bytes of a {@link HeapPage}. Fields are decoded
+ * from the page buffer the first time they are asked for, so a scan that
+ * only looks at one column never builds the others.
+ * <p>
+ * The buffer a HeapTuple reads from is never written again: a page that has
+ * handed out tuples copies its buffer before its next modification. A tuple
+ * returned by {@link HeapPage#iterator()} therefore stays valid after the page
+ * changes. A tuple returned by {@link HeapPage#viewIterator()} is a single
+ * view that is moved from slot to slot and must not be kept.
+ */
+class HeapTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fieldOffsets;
+    private transient ByteBuffer buf;
+    private int base;
+
+    /**
+     * @param td           the schema of the page
+     * @param fieldOffsets the offset of each field within a tuple
+     */
+    HeapTuple(TupleDesc td, int[] fieldOffsets) {
+        super(td);
+        this.fieldOffsets = fieldOffsets;
+    }
+
+    /**
+     * Point this tuple at the given slot, forgetting fields decoded so far.
+     *
+     * @param buf  the page buffer
+     * @param base the offset of the tuple in buf
+     * @param rid  the record id of the slot
+     */
+    void moveTo(ByteBuffer buf, int base, RecordId rid) {
+        this.buf = buf;
+        this.base = base;
+        setRecordId(rid);
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            super.setField(i, null);
+        }
+    }
+
+    @Override
+    public Field getField(int i) {
+        Field f = super.getField(i);
+        if (f == null && buf != null) {
+            f = getTupleDesc().getFieldType(i).parse(buf, base + fieldOffsets[i]);
+            super.setField(i, f);
+        }
+        return f;
+    }
+
+    @Override
+    public Iterator<Field> fields() {
+        materialize();
+        return super.fields();
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+
+    private void materialize() {
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            getField(i);
+        }
+    }
+
+    /**
+     * Serialize as a plain tuple: the page buffer does not travel.
+     */
+    private Object writeReplace() {
+        Tuple t = new Tuple(getTupleDesc());
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            t.setField(i, getField(i));
+        }
+        t.setRecordId(getRecordId());
+        return t;
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer holds the tail of the log in memory. Records are serialized into
+ * a direct ByteBuffer that is reused once its contents have been written to
+ * the log file, so appending a record costs no system call.
+ * <p>
+ * Every byte of the log has a log sequence number (LSN): its position in the
+ * log since the log was created. LSNs only grow, also when the head of the
+ * log file is truncated. The buffer knows the LSN of its first byte, so the
+ * LSN of a record is known as soon as it is appended.
+ * <p>
+ * When a record does not fit, the buffer hands its contents to its
+ * {@link Sink} to be written out and the record continues in the emptied
+ * buffer, so records can be larger than the buffer.
+ * <p>
+ * LogBuffer is not thread safe; {@link LogFile} only uses it under its monitor.
+ */
+class LogBuffer {
+
+    /**
+     * Where the contents of a buffer are written.
+     */
+    interface Sink {
+        /**
+         * Write the bytes of the log that start at the given LSN.
+         */
+        void write(ByteBuffer bytes, long lsn) throws IOException;
+    }
+
+    private final ByteBuffer buffer;
+    private final Sink sink;
+    private long startLsn;
+
+    LogBuffer(int capacity, Sink sink) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.sink = sink;
+    }
+
+    /**
+     * @return the LSN of the first byte in the buffer
+     */
+    long startLsn() {
+        return startLsn;
+    }
+
+    /**
+     * @return the LSN the next byte appended gets
+     */
+    long endLsn() {
+        return startLsn + buffer.position();
+    }
+
+    boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * Empty the buffer, without writing it out.
+     *
+     * @param lsn the LSN the next byte appended gets
+     */
+    void reset(long lsn) {
+        buffer.clear();
+        startLsn = lsn;
+    }
+
+    /**
+     * @return a view of the bytes appended since the last reset
+     */
+    ByteBuffer contents() {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * Write the contents out to the sink and empty the buffer.
+     */
+    void drain() throws IOException {
+        long end = endLsn();
+        sink.write(contents(), startLsn);
+        reset(end);
+    }
+
+    void putByte(int b) throws IOException {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    void putInt(int i) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(i);
+    }
+
+    void putLong(long l) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(l);
+    }
+
+    void put(byte[] bytes) throws IOException {
+        put(bytes, 0, bytes.length);
+    }
+
+    void put(byte[] bytes, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(buffer.remaining(), len);
+            buffer.put(bytes, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            drain();
+        }
+    }
+}
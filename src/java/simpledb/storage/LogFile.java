@@ -4,13 +4,16 @@ import simpledb.common.Database;
 import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -42,44 +45,98 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
+ * <p> The log is a sequence of records. Every byte of the log has a log
+ * sequence number (LSN), its position in the log since the log was created;
+ * records are identified by the LSN of their first byte. Truncating the head
+ * of the log file does not change the LSNs of the records that are kept.
+ *
  * <p> The format of the log file is as follows:
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The first long integer of the file is the LSN of the last written
+ * checkpoint, or -1 if there are no checkpoints
+ *
+ * <li> The second long integer is the LSN of the first log record in the
+ * file, which follows this header
  *
  * <li> All additional data in the log consists of log records.  Log
  * records are variable length.
  *
- * <li> Each log record begins with an integer type and a long integer
+ * <li> Each log record begins with a byte type and a long integer
  * transaction id.
  *
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * <li> Each log record ends with a long integer, the LSN of the
+ * record.
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
+ * <li> There are seven record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE,
+ * COMPENSATION, BEGIN, and CHECKPOINT
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
  * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * after image.  A page image is a byte page type (see
+ * {@link PageChange#pageType}), the table id and page number of the page,
+ * the integer length of the page data and the page data itself.
+ *
+ * <li>SLOT_UPDATE records describe a change to the slots of a
+ * {@link SlottedPage}: the page type, table id and page number, the integer
+ * slot size and number of changed slots, and for each changed slot its
+ * integer number, a byte of flags telling whether it was used before and
+ * after the change, and the contents of the slot before (if it was used)
+ * and after (if it is used.) An empty slot is all zeroes.
+ *
+ * <li>COMPENSATION records log the undo of an UPDATE or SLOT_UPDATE record
+ * by a rollback: the long integer LSN of the undone record, the byte type of
+ * the record that would log the undo, and the undo in the format of that
+ * record. They are redone but never undone.
  *
  * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * the checkpoint was taken and their first log record on disk, and of the
+ * dirty page table: the pages with logged changes not yet written to disk,
+ * and the LSN of the first of those changes.  The format of the record is
+ * an integer count of the number of transactions, as well as a long integer
+ * transaction id and a long integer first record LSN for each active
+ * transaction, then an integer count of the number of pages, as well as a
+ * byte page type, integer table id, integer page number and long integer
+ * LSN for each page.
  *
  * </ul>
+ *
+ * <p> Checkpoints are fuzzy: they do not write any page, nor stop
+ * transactions or the buffer pool. A checkpoint appends its record, waits
+ * for it to be durable, points the header at it and truncates the log before
+ * the first record recovery could need. The buffer pool writes pages in the
+ * background instead (see {@link BufferPool#cleanPages}), and reports every
+ * write with {@link #pageWritten}, which keeps the dirty page table small.
+ *
+ * <p> Recovery follows ARIES. The analysis pass scans the log from its
+ * first record to find the transactions that neither committed nor aborted
+ * (the losers), and the pages with changes that may not be on disk, with the
+ * LSN of their first change (the dirty page table), which it takes from the
+ * last checkpoint and adds the changes after it to. The redo pass repeats
+ * history from the oldest of those LSNs, losers included. It is partitioned
+ * by page: one thread reads the log and hands each change to the worker
+ * thread that owns the page, so redo scales with the number of threads (see
+ * {@link #setRecoveryThreads}.) A worker skips changes that are not newer
+ * than the pageLSN of its copy of the page. The undo pass then rolls the
+ * losers back, newest change first, logging a COMPENSATION record for every
+ * change it undoes so that a crash during recovery does not undo it twice.
+ *
+ * <p> Records are not written to the file as they are logged: they are
+ * serialized into an in-memory {@link LogBuffer}, and a single flusher thread
+ * writes the buffer out with one sequential write and forces it to disk on
+ * behalf of every thread waiting for the log to be durable (group commit.) A
+ * committing transaction waits until the flusher has forced its commit
+ * record; commits that arrive while a force is in progress share the next
+ * one. The flusher can also be told to hold a force for a while so that more
+ * commits join it, see {@link #setGroupCommit}.
  */
 public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    private FileChannel channel;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,16 +144,75 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
+    static final int COMPENSATION_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /**
+     * The pageLSN of a page no logged change has been made to.
+     */
+    public static final long NO_LSN = -1;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    // the LSN of the first record of a new log; LSNs and file offsets agree until the log is truncated
+    final static long FIRST_LSN = HEADER_SIZE;
 
-    long currentOffset = -1;//protected by this
+    // LSN of the first record in the file
+    private long baseLsn = FIRST_LSN;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // the LSN of the first record of each live transaction
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
+    // the LSNs of the UPDATE and SLOT_UPDATE records of each live transaction, for rollback
+    private final Map<Long, List<Long>> tidToUpdates = new HashMap<>();//protected by this
+
+    // pages with a full image in the log since the last checkpoint
+    private final Set<PageId> imagedPages = new HashSet<>();//protected by this
+    // the dirty page table: pages with logged changes that have not been written out yet
+    private final Map<PageId, UnwrittenPage> unwrittenPages = new HashMap<>();//protected by this
+    // serializes checkpoints and truncations, which run mostly outside the monitor
+    private final Object checkpointLock = new Object();
+
+    /**
+     * By default a force is not held back: commits are only grouped while
+     * the previous force is in progress.
+     */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 0;
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 32;
+
+    // each of the two log buffers holds this many bytes
+    private static final int LOG_BUFFER_BYTES = 256 << 10;
+    // an idle flusher thread exits after this long, and is restarted on demand
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+    // recovery scans the log through a buffer this large
+    private static final int SCAN_BUFFER_BYTES = 1 << 20;
+    // undo reads single records, newest first
+    private static final int UNDO_BUFFER_BYTES = 16 << 10;
+    // changes queued for each redo worker
+    private static final int REDO_QUEUE_SIZE = 1024;
+
+    // records logged after writtenLsn, not yet in the file. protected by this
+    private LogBuffer tail;
+    // a second buffer for appends while the flusher writes out the first one
+    private LogBuffer spare;
+    private long writtenLsn = -1;//protected by this
+    private long durableLsn = -1;//protected by this
+    // the largest LSN some thread is waiting to be durable
+    private long flushRequest = -1;//protected by this
+    private int waitingCommits = 0;//protected by this
+    private int waitingForces = 0;//protected by this
+    private boolean flushing = false;//protected by this
+    private IOException flushError;//protected by this
+    private Thread flusher;//protected by this
+    private boolean closed = false;//protected by this
+    private long forceCount = 0;//protected by this
+
+    private long groupCommitDelayMicros = DEFAULT_GROUP_COMMIT_DELAY_MICROS;//protected by this
+    private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;//protected by this
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();//protected by this
 
     /**
      * Constructor.
@@ -113,6 +229,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -133,18 +250,117 @@ public class LogFile {
         totalRecords++;
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            baseLsn = FIRST_LSN;
+            writeHeader(NO_CHECKPOINT_ID);
+            startTail(FIRST_LSN);
+        }
+    }
+
+    // records will be appended from the given LSN, the end of the file
+    private void startTail(long end) {
+        if (tail == null) {
+            tail = new LogBuffer(LOG_BUFFER_BYTES, this::writeLog);
+            spare = new LogBuffer(LOG_BUFFER_BYTES, this::writeLog);
         }
+        tail.reset(end);
+        writtenLsn = end;
+        durableLsn = end;
+        flushRequest = end;
+    }
+
+    // the position of the byte with the given LSN in the file
+    private long fileOffset(long lsn) {
+        return HEADER_SIZE + lsn - baseLsn;
+    }
+
+    private void writeHeader(long checkpointLsn) throws IOException {
+        writeHeader(channel, checkpointLsn, baseLsn);
+    }
+
+    private static void writeHeader(FileChannel out, long checkpointLsn, long base) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpointLsn);
+        header.putLong(base);
+        header.flip();
+        writeFully(out, header, 0);
+    }
+
+    private long readCheckpointLsn() throws IOException {
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    /**
+     * The sink of the log buffers: write the given bytes of the log to the
+     * file. Called under the monitor by a buffer that is full.
+     */
+    private void writeLog(ByteBuffer bytes, long lsn) throws IOException {
+        long end = lsn + bytes.remaining();
+        writeFully(channel, bytes, fileOffset(lsn));
+        writtenLsn = Math.max(writtenLsn, end);
+    }
+
+    // start a record, returning its LSN
+    private long beginRecord(int type, long tid) throws IOException {
+        long start = tail.endLsn();
+        tail.putByte(type);
+        tail.putLong(tid);
+        return start;
+    }
+
+    // end the record that began at the given LSN, returning the LSN after it
+    private long endRecord(long start) throws IOException {
+        tail.putLong(start);
+        return tail.endLsn();
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
 
+    /**
+     * @return the LSN the next log record will get
+     */
+    public synchronized long getCurrentLsn() {
+        return tail == null ? FIRST_LSN : tail.endLsn();
+    }
+
+    /**
+     * Configure group commit. Before forcing the log for a commit, the
+     * flusher waits until size commits are waiting for it, but no longer
+     * than maxDelayMicros. A force that is not for a commit (write-ahead of a
+     * page, abort) is never held back.
+     *
+     * @param maxDelayMicros the longest a force is held back, 0 to never hold it back
+     * @param size           the number of waiting commits that are forced at once
+     */
+    public synchronized void setGroupCommit(long maxDelayMicros, int size) {
+        if (maxDelayMicros < 0 || size < 1) {
+            throw new IllegalArgumentException("invalid group commit delay " + maxDelayMicros + " or size " + size);
+        }
+        groupCommitDelayMicros = maxDelayMicros;
+        groupCommitSize = size;
+    }
+
+    /**
+     * @return the number of times the log has been forced to disk
+     */
+    public synchronized long getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * Set the number of threads the redo pass of recovery partitions the
+     * pages among.
+     */
+    public synchronized void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("invalid number of recovery threads " + threads);
+        }
+        recoveryThreads = threads;
+    }
+
     /**
      * Write an abort record to the log for the specified tid, force
      * the log to disk, and perform a rollback
@@ -166,38 +382,45 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                long start = beginRecord(ABORT_RECORD, tid.getId());
+                awaitDurable(endRecord(start), false);
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToUpdates.remove(tid.getId());
             }
         }
     }
 
     /**
      * Write a commit record to disk for the specified tid,
-     * and force the log to disk.
+     * and force the log to disk. The force is shared with the
+     * transactions committing at the same time.
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            end = endRecord(beginRecord(COMMIT_RECORD, tid.getId()));
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToUpdates.remove(tid.getId());
+        }
+        // wait without holding the log, so that other commits can join the force
+        awaitDurable(end, true);
     }
 
     /**
      * Write an UPDATE record to disk for the specified tid and page
      * (with provided         before and after images.)
+     * <p>
+     * Only the first write of a page after a checkpoint logs the full
+     * images. After that, a write of a {@link SlottedPage} that only changed
+     * slots logs a SLOT_UPDATE record of just the changed slots.
+     * <p>
+     * The LSN of the record becomes the pageLSN of the after image.
      *
      * @param tid    The transaction performing the write
      * @param before The before image of the page
@@ -207,93 +430,103 @@ public class LogFile {
     public synchronized void logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           the change (see PageChange.write)
+           start LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        PageId pid = after.getId();
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        PageChange change = imagedPages.contains(pid) ? PageChange.ofSlots(after, beforeData, afterData) : null;
+        if (change == null) {
+            change = PageChange.ofImages(after, beforeData, afterData);
+            imagedPages.add(pid);
+        }
+        long start = beginRecord(change.recordType(), tid.getId());
+        Debug.log(change.isImage() ? "WRITE, LSN = " + start : "WRITE SLOTS, LSN = " + start);
+
+        change.write(tail);
+        endRecord(start);
+        after.setPageLSN(start);
+        changedPage(pid, start);
+        if (tidToFirstLogRecord.containsKey(tid.getId())) {
+            tidToUpdates.computeIfAbsent(tid.getId(), k -> new ArrayList<>()).add(start);
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    // a change of the page was logged at the given LSN
+    private void changedPage(PageId pid, long lsn) {
+        unwrittenPages.computeIfAbsent(pid, k -> new UnwrittenPage(lsn)).lastLsn = lsn;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /**
+     * Tell the log that a page has been written to disk with its changes up
+     * to and including the one logged at the given LSN, so that the next
+     * checkpoint does not list it in its dirty page table.
+     *
+     * @param pid the page written
+     * @param lsn the pageLSN of the data written
+     */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        UnwrittenPage page = unwrittenPages.get(pid);
+        if (page != null && page.lastLsn <= lsn) {
+            unwrittenPages.remove(pid);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /**
+     * @return true if the change logged at the given LSN is the last one
+     * logged for the page, so writing the page as of that change loses no
+     * later change
+     */
+    synchronized boolean isLastChange(PageId pid, long lsn) {
+        UnwrittenPage page = unwrittenPages.get(pid);
+        return page != null && page.lastLsn == lsn;
+    }
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+    /**
+     * @return true if the transaction began in the log and is live, so that
+     * {@link #rollback} can undo its logged changes even once they are on disk
+     */
+    synchronized boolean canRollback(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * A page in the dirty page table.
+     */
+    private static class UnwrittenPage {
+        // the first change since the page was last written
+        final long recLsn;
+        long lastLsn;
+
+        UnwrittenPage(long recLsn) {
+            this.recLsn = recLsn;
+            this.lastLsn = recLsn;
         }
-        return newPage;
+    }
 
+    /**
+     * Write a COMPENSATION record for the undo of a change.
+     *
+     * @param tid         the transaction rolled back
+     * @param compensated the LSN of the record of the change undone
+     * @param undo        the change that undoes it
+     * @return the LSN of the record
+     */
+    private long logCompensation(long tid, long compensated, PageChange undo) throws IOException {
+        preAppend();
+        long start = beginRecord(COMPENSATION_RECORD, tid);
+        tail.putLong(compensated);
+        tail.putByte(undo.recordType());
+        undo.write(tail);
+        endRecord(start);
+        changedPage(undo.pageId(), start);
+        return start;
     }
 
     /**
@@ -309,184 +542,223 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), start);
+        endRecord(start);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + start);
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * The checkpoint is fuzzy: it records the live transactions and the
+     * dirty page table without writing out any page, and only holds the log
+     * while it appends its record, so that transactions keep running.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long startCpLsn, endCpLsn;
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, LSN = " + getCurrentLsn());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpLsn = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                tail.putInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> active : tidToFirstLogRecord.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + active.getKey());
+                    tail.putLong(active.getKey());
+                    tail.putLong(active.getValue());
+                }
+                // and the dirty page table
+                tail.putInt(unwrittenPages.size());
+                for (Map.Entry<PageId, UnwrittenPage> page : unwrittenPages.entrySet()) {
+                    PageChange.writePageId(tail, page.getKey());
+                    tail.putLong(page.getValue().recLsn);
                 }
+                endCpLsn = endRecord(startCpLsn);
+                // the first write of each page after the checkpoint logs its images
+                imagedPages.clear();
+            }
+            awaitDurable(endCpLsn, false);
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //once the CP is durable, make sure the CP location at the
+            // beginning of the log file is updated
+            FileChannel out;
+            synchronized (this) {
+                writeHeader(startCpLsn);
+                out = channel;
             }
-        }
+            out.force(false);
+            //Debug.log("CP LSN = " + startCpLsn);
 
-        logTruncate();
+            logTruncate();
+        }
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption: the records before the last checkpoint, the first record
+     * of every transaction live at the checkpoint and the first change of
+     * every page in its dirty page table.
+     * <p>
+     * The records kept are copied to a new file mostly outside the monitor;
+     * only the records logged meanwhile are copied while holding it.
      */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            long cpLsn, minLogRecord, oldBase, copyEnd;
+            FileChannel oldChannel;
+            synchronized (this) {
+                preAppend();
+                writeTail();
+                cpLsn = readCheckpointLsn();
+                if (cpLsn == NO_CHECKPOINT_ID) {
+                    return;
                 }
-            }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
 
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
+                minLogRecord = cpLsn;
+                LogRecord cp = readRecord(reader(cpLsn, UNDO_BUFFER_BYTES));
+                if (cp.type != CHECKPOINT_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
                 }
+                for (long firstLogRecord : cp.active.values()) {
+                    minLogRecord = Math.min(minLogRecord, firstLogRecord);
+                }
+                for (long recLsn : cp.dirtyPages.values()) {
+                    minLogRecord = Math.min(minLogRecord, recLsn);
+                }
+                if (minLogRecord <= baseLsn) {
+                    return;
+                }
+                oldChannel = channel;
+                oldBase = baseLsn;
+                copyEnd = writtenLsn;
+            }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+            // we can truncate everything before minLogRecord. LSNs do not change,
+            // so the records are copied as they are. Records before copyEnd are
+            // not written again, so they are copied without holding the log
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
+            FileChannel newChannel = logNew.getChannel();
+            writeHeader(newChannel, cpLsn, minLogRecord);
+            newChannel.position(HEADER_SIZE);
+            copy(oldChannel, HEADER_SIZE + minLogRecord - oldBase, copyEnd - minLogRecord, newChannel);
 
-            } catch (EOFException e) {
-                break;
+            synchronized (this) {
+                writeTail();
+                copy(oldChannel, HEADER_SIZE + copyEnd - oldBase, writtenLsn - copyEnd, newChannel);
+
+                Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord
+                        + " NEW LENGTH: " + (HEADER_SIZE + writtenLsn - minLogRecord));
+
+                newChannel.force(true);
+                logNew.close();
+                raf.close();
+                logFile.delete();
+                newFile.renameTo(logFile);
+                raf = new RandomAccessFile(logFile, "rw");
+                channel = raf.getChannel();
+                newFile.delete();
+                baseLsn = minLogRecord;
+
+                // everything written is in the new file, which has been forced
+                durableLsn = Math.max(durableLsn, writtenLsn);
+                notifyAll();
             }
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
         //print();
     }
 
+    // append length bytes of one channel, from the given position, to another
+    private static void copy(FileChannel from, long position, long length, FileChannel to) throws IOException {
+        for (long copied = 0; copied < length; ) {
+            copied += from.transferTo(position + copied, length - copied, to);
+        }
+    }
+
     /**
      * Rollback the specified transaction, setting the state of any
      * of pages it updated to their pre-updated state.  To preserve
      * transaction semantics, this should not be called on
      * transactions that have already committed (though this may not
      * be enforced by this method.)
+     * <p>
+     * The logged changes of the transaction are undone on the pages on disk,
+     * newest first, and each undo is logged as a COMPENSATION record. The
+     * undone pages are dropped from the buffer pool, along with any change
+     * of the transaction that was never logged.
      *
      * @param tid The transaction to rollback
+     * @throws NoSuchElementException if the transaction is not live
      */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
-                // TODO: some code goes here
+                if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                }
+                List<Long> updates = tidToUpdates.remove(tid.getId());
+                if (updates != null) {
+                    writeTail();
+                    undo(updates);
+                }
             }
         }
     }
 
+    /**
+     * Undo logged changes, newest first, logging a COMPENSATION record for
+     * each. The pages are read from disk, written back once the compensations
+     * are durable, and dropped from the buffer pool.
+     *
+     * @param lsns the LSNs of the UPDATE and SLOT_UPDATE records to undo
+     */
+    private void undo(List<Long> lsns) throws IOException {
+        List<Long> newestFirst = new ArrayList<>(lsns);
+        newestFirst.sort(Collections.reverseOrder());
+        Map<PageId, RebuiltPage> pages = new HashMap<>();
+        LogReader in = reader(baseLsn, UNDO_BUFFER_BYTES);
+        for (long lsn : newestFirst) {
+            in.seek(lsn);
+            LogRecord record = readRecord(in);
+            PageChange undo = record.change.inverse();
+            PageId pid = undo.pageId();
+            RebuiltPage page = pages.get(pid);
+            if (page == null) {
+                page = new RebuiltPage(undo);
+                pages.put(pid, page);
+            }
+            page.apply(undo, logCompensation(record.tid, lsn, undo));
+        }
+        // write-ahead: the compensations go to disk before the pages
+        force();
+        for (Map.Entry<PageId, RebuiltPage> page : pages.entrySet()) {
+            page.getValue().write();
+            pageWritten(page.getKey(), page.getValue().pageLsn);
+            Database.getBufferPool().removePage(page.getKey());
+        }
+    }
+
     /**
      * Shutdown the logging system, writing out whatever state
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (checkpointLock) {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                    raf.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -497,96 +769,593 @@ public class LogFile {
      * Recover the database system by ensuring that the updates of
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
+     * <p>
+     * Runs the analysis, redo and undo passes described above, and writes an
+     * ABORT record for every transaction it rolls back. A torn record at the
+     * end of the log is dropped.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // TODO: some code goes here
+                if (raf.length() < HEADER_SIZE) {
+                    raf.setLength(0);
+                    baseLsn = FIRST_LSN;
+                    writeHeader(NO_CHECKPOINT_ID);
+                    startTail(FIRST_LSN);
+                    return;
+                }
+                raf.seek(LONG_SIZE);
+                baseLsn = raf.readLong();
+
+                Analysis analysis = analyze();
+                raf.setLength(fileOffset(analysis.end));
+                startTail(analysis.end);
+
+                redo(analysis.dirtyPages);
+                for (PageId pid : analysis.dirtyPages.keySet()) {
+                    Database.getBufferPool().removePage(pid);
+                }
+
+                List<Long> undo = new ArrayList<>();
+                for (Loser loser : analysis.losers.values()) {
+                    for (long lsn : loser.updates) {
+                        if (lsn < loser.undoneFrom) {
+                            undo.add(lsn);
+                        }
+                    }
+                }
+                undo(undo);
+                for (long tid : analysis.losers.keySet()) {
+                    preAppend();
+                    endRecord(beginRecord(ABORT_RECORD, tid));
+                }
+                force();
+                Debug.log("RECOVERED LSNS " + baseLsn + " TO " + analysis.end + ", REDID "
+                        + analysis.dirtyPages.size() + " PAGES, ROLLED BACK " + analysis.losers.size() + " TRANSACTIONS");
             }
         }
     }
 
     /**
-     * Print out a human readable represenation of the log
+     * A transaction that neither committed nor aborted before the crash.
      */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+    private static class Loser {
+        // the LSNs of its UPDATE and SLOT_UPDATE records
+        final List<Long> updates = new ArrayList<>();
+        // its changes from this LSN on have been undone by a rollback cut short by the crash
+        long undoneFrom = Long.MAX_VALUE;
+    }
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+    /**
+     * What the analysis pass learns from the log.
+     */
+    private static class Analysis {
+        // the LSN after the last complete record
+        long end;
+        // the dirty page table: the LSN of the first change of each page that may not be on disk
+        final Map<PageId, Long> dirtyPages = new HashMap<>();
+        final Map<Long, Loser> losers = new HashMap<>();
+    }
 
-                switch (cpType) {
+    /**
+     * The analysis pass: scan the log from its first record to its last
+     * complete one.
+     */
+    private Analysis analyze() throws IOException {
+        Analysis analysis = new Analysis();
+        analysis.end = baseLsn;
+        LogReader in = reader(baseLsn, SCAN_BUFFER_BYTES);
+        try {
+            while (!in.atEnd()) {
+                LogRecord record = readRecord(in);
+                switch (record.type) {
                     case BEGIN_RECORD:
-                        System.out.println(" (BEGIN)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                        break;
-                    case ABORT_RECORD:
-                        System.out.println(" (ABORT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        analysis.losers.put(record.tid, new Loser());
                         break;
                     case COMMIT_RECORD:
-                        System.out.println(" (COMMIT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    case ABORT_RECORD:
+                        analysis.losers.remove(record.tid);
                         break;
-
                     case CHECKPOINT_RECORD:
-                        System.out.println(" (CHECKPOINT)");
-                        int numTransactions = raf.readInt();
-                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                        while (numTransactions-- > 0) {
-                            long tid = raf.readLong();
-                            long firstRecord = raf.readLong();
-                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                        }
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
+                        // pages not in its dirty page table had been written out
+                        analysis.dirtyPages.keySet().retainAll(record.dirtyPages.keySet());
+                        analysis.dirtyPages.putAll(record.dirtyPages);
                         break;
                     case UPDATE_RECORD:
-                        System.out.println(" (UPDATE)");
+                    case SLOT_UPDATE_RECORD:
+                        analysis.losers.computeIfAbsent(record.tid, k -> new Loser()).updates.add(record.lsn);
+                        analysis.dirtyPages.putIfAbsent(record.change.pageId(), record.lsn);
+                        break;
+                    case COMPENSATION_RECORD:
+                        Loser loser = analysis.losers.computeIfAbsent(record.tid, k -> new Loser());
+                        loser.undoneFrom = Math.min(loser.undoneFrom, record.compensated);
+                        analysis.dirtyPages.putIfAbsent(record.change.pageId(), record.lsn);
+                        break;
+                }
+                analysis.end = in.lsn();
+            }
+        } catch (IOException e) {
+            // a record torn by the crash, or garbage after it, ends the log
+            Debug.log("END OF LOG AT LSN " + analysis.end + ": " + e.getMessage());
+        }
+        return analysis;
+    }
 
-                        long start = raf.getFilePointer();
-                        Page before = readPageData(raf);
+    /**
+     * The redo pass: repeat history for the pages in the dirty page table,
+     * from the first change of each. This thread reads the log and hands each
+     * change to the worker that owns its page; workers apply their changes
+     * in LSN order and write their pages out when the log is exhausted.
+     */
+    private void redo(Map<PageId, Long> dirtyPages) throws IOException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        RedoWorker[] workers = new RedoWorker[recoveryThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(i);
+            workers[i].start();
+        }
+        try {
+            LogReader in = reader(Collections.min(dirtyPages.values()), SCAN_BUFFER_BYTES);
+            while (!in.atEnd()) {
+                LogRecord record = readRecord(in);
+                if (record.change == null) {
+                    continue;
+                }
+                PageId pid = record.change.pageId();
+                Long recLsn = dirtyPages.get(pid);
+                if (recLsn != null && record.lsn >= recLsn) {
+                    workers[Math.floorMod(pid.hashCode(), workers.length)].submit(new Redo(record.lsn, record.change));
+                }
+            }
+        } finally {
+            for (RedoWorker worker : workers) {
+                worker.submit(RedoWorker.DONE);
+            }
+        }
+        IOException error = null;
+        for (RedoWorker worker : workers) {
+            Throwable e = worker.await();
+            if (e != null && error == null) {
+                error = e instanceof IOException ? (IOException) e : new IOException("redo failed", e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
 
-                        long middle = raf.getFilePointer();
-                        Page after = readPageData(raf);
+    /**
+     * A change to redo, and the LSN of its record.
+     */
+    private static class Redo {
+        final long lsn;
+        final PageChange change;
 
-                        System.out.println(start + ": before image table id " + before.getId().getTableId());
-                        System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                        System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+        Redo(long lsn, PageChange change) {
+            this.lsn = lsn;
+            this.change = change;
+        }
+    }
 
-                        System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                        System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    /**
+     * A redo worker. It owns the pages whose ids hash to it, so it applies
+     * their changes without synchronization.
+     */
+    private static class RedoWorker extends Thread {
+        static final Redo DONE = new Redo(NO_LSN, null);
 
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+        private final BlockingQueue<Redo> queue = new ArrayBlockingQueue<>(REDO_QUEUE_SIZE);
+        private final Map<PageId, RebuiltPage> pages = new HashMap<>();
+        private Throwable error;
 
-                        break;
+        RedoWorker(int i) {
+            super("redo " + i);
+            setDaemon(true);
+        }
+
+        void submit(Redo redo) throws InterruptedIOException {
+            try {
+                queue.put(redo);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        /**
+         * Wait for the worker to finish.
+         *
+         * @return what made the worker fail, or null
+         */
+        Throwable await() throws InterruptedIOException {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+            return error;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Redo redo = queue.take(); redo != DONE; redo = queue.take()) {
+                    // after a failure, keep taking changes so that the reader is not blocked
+                    if (error == null) {
+                        try {
+                            apply(redo);
+                        } catch (Throwable e) {
+                            error = e;
+                        }
+                    }
                 }
+                if (error == null) {
+                    for (RebuiltPage page : pages.values()) {
+                        page.write();
+                    }
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        private void apply(Redo redo) throws IOException {
+            PageId pid = redo.change.pageId();
+            RebuiltPage page = pages.get(pid);
+            if (page == null) {
+                page = new RebuiltPage(redo.change);
+                pages.put(pid, page);
+            }
+            page.apply(redo.change, redo.lsn);
+        }
+    }
+
+    /**
+     * A page rebuilt from the log by redo or undo, starting from the page on
+     * disk.
+     */
+    private static class RebuiltPage {
+        // a change of the page, which knows how to construct it
+        private final PageChange first;
+        // the page the data was loaded as, for the layout of its slots
+        private Page layout;
+        private byte[] data;
+        private long pageLsn = NO_LSN;
+
+        /**
+         * The page is not read from disk if its first change replaces all of
+         * it: it may not be on disk at all.
+         */
+        RebuiltPage(PageChange first) {
+            this.first = first;
+            if (!first.isImage()) {
+                layout = Database.getCatalog().getDatabaseFile(first.tableId).readPage(first.pageId());
+                data = layout.getPageData();
+            }
+        }
+
+        /**
+         * Apply a change logged at the given LSN, unless the page already
+         * reflects it.
+         */
+        void apply(PageChange change, long lsn) throws IOException {
+            if (lsn <= pageLsn) {
+                return;
+            }
+            if (layout == null && !change.isImage()) {
+                layout = first.newPage(data);
+            }
+            data = change.redo(data, layout);
+            pageLsn = lsn;
+        }
+
+        void write() throws IOException {
+            Page page = first.newPage(data);
+            page.setPageLSN(pageLsn);
+            Database.getCatalog().getDatabaseFile(first.tableId).writePage(page);
+        }
+    }
+
+    /**
+     * A record read back from the log.
+     */
+    private static class LogRecord {
+        private static final String[] TYPES = {null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT",
+                "SLOT_UPDATE", "COMPENSATION"};
+
+        final int type;
+        final long tid;
+        final long lsn;
+        // UPDATE, SLOT_UPDATE and COMPENSATION records: the change to redo
+        PageChange change;
+        // COMPENSATION records: the LSN of the record undone
+        long compensated = NO_LSN;
+        // CHECKPOINT records: the first LSN of each active transaction
+        Map<Long, Long> active;
+        // CHECKPOINT records: the dirty page table
+        Map<PageId, Long> dirtyPages;
+
+        LogRecord(int type, long tid, long lsn) {
+            this.type = type;
+            this.tid = tid;
+            this.lsn = lsn;
+        }
+
+        @Override
+        public String toString() {
+            String s = lsn + ": " + TYPES[type] + " tid " + tid;
+            if (type == COMPENSATION_RECORD) {
+                s += ", undoes LSN " + compensated;
+            }
+            if (change != null) {
+                s += ", " + change;
+            }
+            if (active != null) {
+                s += ", active transactions (tid=first LSN) " + active;
+            }
+            if (dirtyPages != null) {
+                s += ", dirty pages (page=first LSN) " + dirtyPages;
+            }
+            return s;
+        }
+    }
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
+    /**
+     * @return a reader of the log file from the given LSN to the end of the file
+     */
+    private LogReader reader(long lsn, int bufferSize) throws IOException {
+        return new LogReader(channel, HEADER_SIZE - baseLsn, lsn, baseLsn + channel.size() - HEADER_SIZE, bufferSize);
+    }
+
+    /**
+     * Read the record at the reader's position.
+     *
+     * @throws IOException if there is no complete and valid record there
+     */
+    private static LogRecord readRecord(LogReader in) throws IOException {
+        long lsn = in.lsn();
+        int type = in.readByte();
+        LogRecord record = new LogRecord(type, in.readLong(), lsn);
+        switch (type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            case UPDATE_RECORD:
+            case SLOT_UPDATE_RECORD:
+                record.change = PageChange.read(in, type);
+                break;
+            case COMPENSATION_RECORD:
+                record.compensated = in.readLong();
+                record.change = PageChange.read(in, in.readByte());
                 break;
+            case CHECKPOINT_RECORD:
+                int count = in.readInt();
+                if (count < 0 || (long) count * 2 * LONG_SIZE > in.end() - in.lsn()) {
+                    throw new IOException("invalid checkpoint record at LSN " + lsn);
+                }
+                record.active = new HashMap<>();
+                while (count-- > 0) {
+                    long tid = in.readLong();
+                    record.active.put(tid, in.readLong());
+                }
+                count = in.readInt();
+                if (count < 0 || (long) count * (1 + 2 * INT_SIZE + LONG_SIZE) > in.end() - in.lsn()) {
+                    throw new IOException("invalid checkpoint record at LSN " + lsn);
+                }
+                record.dirtyPages = new HashMap<>();
+                while (count-- > 0) {
+                    PageId pid = PageChange.readPageId(in);
+                    record.dirtyPages.put(pid, in.readLong());
+                }
+                break;
+            default:
+                throw new IOException("unknown record type " + type + " at LSN " + lsn);
+        }
+        if (in.readLong() != lsn) {
+            throw new IOException("torn record at LSN " + lsn);
+        }
+        return record;
+    }
+
+    /**
+     * Print out a human readable represenation of the log
+     */
+    public synchronized void print() throws IOException {
+        writeTail();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        }
+        if (header.hasRemaining()) {
+            System.out.println("EMPTY LOG");
+            return;
+        }
+        long checkpoint = header.getLong(0);
+        long base = header.getLong(LONG_SIZE);
+        System.out.println("0: checkpoint record at LSN " + checkpoint);
+        System.out.println(LONG_SIZE + ": first record at LSN " + base);
+
+        LogReader in = new LogReader(channel, HEADER_SIZE - base, base, base + channel.size() - HEADER_SIZE,
+                SCAN_BUFFER_BYTES);
+        try {
+            while (!in.atEnd()) {
+                System.out.println(readRecord(in));
+            }
+        } catch (IOException e) {
+            System.out.println(in.lsn() + ": END OF LOG (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Force every record logged so far to disk.
+     */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            if (tail == null) {
+                return;
+            }
+            end = tail.endLsn();
+        }
+        awaitDurable(end, false);
+    }
+
+    /**
+     * Force the log to disk up to and including the record at the given LSN,
+     * such as the pageLSN of a page about to be written.
+     */
+    public void force(long lsn) throws IOException {
+        if (lsn != NO_LSN) {
+            // the flusher only forces whole records, so the record is durable once its first byte is
+            awaitDurable(lsn + 1, false);
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to the given LSN. The flusher
+     * thread does the force.
+     *
+     * @param lsn    the end of the last record that has to be durable
+     * @param commit true if this is for a commit, which the flusher may
+     *               hold back to group it with other commits
+     */
+    private synchronized void awaitDurable(long lsn, boolean commit) throws IOException {
+        if (durableLsn >= lsn) {
+            return;
+        }
+        flushRequest = Math.max(flushRequest, lsn);
+        if (commit) {
+            waitingCommits++;
+        } else {
+            waitingForces++;
+        }
+        if (flusher == null) {
+            flusher = new Thread(this::flushLoop, "log flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
+        boolean interrupted = false;
+        try {
+            // a commit must not return before it is durable, so this wait ignores interrupts
+            while (durableLsn < lsn && flushError == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (commit) {
+                waitingCommits--;
+            } else {
+                waitingForces--;
             }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (durableLsn < lsn) {
+            throw new IOException("could not force the log", flushError);
         }
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /**
+     * Write the buffered records to the file, without forcing them. Once
+     * this returns, everything logged so far can be read from the file.
+     */
+    private synchronized void writeTail() throws IOException {
+        if (tail == null) {
+            return;
+        }
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while writing the log", e);
+            }
+        }
+        if (!tail.isEmpty()) {
+            tail.drain();
+        }
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    private static void writeFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+    }
+
+    /**
+     * The flusher thread: waits for a force to be requested, holds it back
+     * for more commits if configured to, then writes out and forces the
+     * buffer outside the monitor, so that records can be appended to the
+     * other buffer meanwhile.
+     */
+    private void flushLoop() {
+        while (true) {
+            LogBuffer batch;
+            long position;
+            FileChannel out;
+            synchronized (this) {
+                long idleSince = System.currentTimeMillis();
+                while (flushRequest <= durableLsn) {
+                    long idle = FLUSHER_IDLE_MILLIS - (System.currentTimeMillis() - idleSince);
+                    if (closed || idle <= 0) {
+                        flusher = null;
+                        return;
+                    }
+                    waitQuietly(TimeUnit.MILLISECONDS.toNanos(idle));
+                }
+                // 等待更多的提交加入这一次刷盘
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(groupCommitDelayMicros);
+                long remaining;
+                while (waitingForces == 0 && waitingCommits < groupCommitSize
+                        && (remaining = deadline - System.nanoTime()) > 0) {
+                    waitQuietly(remaining);
+                }
+                batch = tail;
+                tail = spare;
+                spare = null;
+                tail.reset(batch.endLsn());
+                position = fileOffset(batch.startLsn());
+                writtenLsn = batch.endLsn();
+                out = channel;
+                flushing = true;
+            }
+
+            long end = batch.endLsn();
+            IOException error = null;
+            try {
+                writeFully(out, batch.contents(), position);
+                out.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                spare = batch;
+                flushing = false;
+                forceCount++;
+                if (error == null) {
+                    durableLsn = Math.max(durableLsn, end);
+                } else {
+                    flushError = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // wait on the monitor for at most the given time; the caller re-checks its condition
+    private void waitQuietly(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+        } catch (InterruptedException e) {
+            // the flusher is never interrupted on purpose; just re-check
+        }
     }
 
 }
@@ -0,0 +1,139 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogReader reads the log file from a given LSN through a large buffer, so
+ * that scanning the log during recovery costs one system call per buffer
+ * instead of several per record. It reads with positional reads and does not
+ * move the position of the channel.
+ * <p>
+ * Reading past the end given at construction throws EOFException, also when
+ * the file is longer: a torn record at the end of the log reads as the end of
+ * the log.
+ * <p>
+ * LogReader is not thread safe.
+ */
+class LogReader {
+
+    private final FileChannel channel;
+    // the position in the file of the byte with LSN 0
+    private final long lsnOffset;
+    private final long end;
+    private final ByteBuffer buffer;
+    // the LSN of the first byte in the buffer
+    private long bufferLsn;
+
+    /**
+     * @param channel   the log file
+     * @param lsnOffset the position in the file minus the LSN, for any byte of the log
+     * @param start     the LSN to start reading at
+     * @param end       the LSN of the end of the log
+     * @param capacity  the size of the read buffer
+     */
+    LogReader(FileChannel channel, long lsnOffset, long start, long end, int capacity) {
+        this.channel = channel;
+        this.lsnOffset = lsnOffset;
+        this.end = end;
+        this.buffer = ByteBuffer.allocate(capacity);
+        buffer.limit(0);
+        this.bufferLsn = start;
+    }
+
+    /**
+     * @return the LSN of the next byte read
+     */
+    long lsn() {
+        return bufferLsn + buffer.position();
+    }
+
+    /**
+     * @return the LSN of the end of the log
+     */
+    long end() {
+        return end;
+    }
+
+    boolean atEnd() {
+        return lsn() >= end;
+    }
+
+    /**
+     * Continue reading at the given LSN.
+     */
+    void seek(long lsn) {
+        long inBuffer = lsn - bufferLsn;
+        if (inBuffer >= 0 && inBuffer <= buffer.limit()) {
+            buffer.position((int) inBuffer);
+        } else {
+            buffer.clear().limit(0);
+            bufferLsn = lsn;
+        }
+    }
+
+    byte readByte() throws IOException {
+        fill(1);
+        return buffer.get();
+    }
+
+    int readInt() throws IOException {
+        fill(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    long readLong() throws IOException {
+        fill(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    void readFully(byte[] bytes) throws IOException {
+        int off = 0;
+        while (off < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                fill(1);
+            }
+            int n = Math.min(buffer.remaining(), bytes.length - off);
+            buffer.get(bytes, off, n);
+            off += n;
+        }
+    }
+
+    void skip(int n) throws IOException {
+        if (lsn() + n > end) {
+            throw new EOFException();
+        }
+        seek(lsn() + n);
+    }
+
+    // make sure the buffer holds at least n more bytes
+    private void fill(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return;
+        }
+        long lsn = lsn();
+        if (lsn + n > end) {
+            throw new EOFException();
+        }
+        buffer.compact();
+        bufferLsn = lsn;
+        long stop = Math.min(end, bufferLsn + buffer.capacity());
+        buffer.limit((int) (stop - bufferLsn));
+        while (buffer.position() < n) {
+            int read = channel.read(buffer, lsnOffset + bufferLsn + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+        // read ahead as far as the file goes, up to the end of the buffer
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, lsnOffset + bufferLsn + buffer.position());
+            if (read <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+}
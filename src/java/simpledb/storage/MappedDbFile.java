@@ -0,0 +1,96 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of the file behind a {@link DbFileChannel}, for
+ * read-mostly tables.
+ * <p>
+ * Pages are handed out as read-only slices of the mapping, so reading a page
+ * costs neither a system call nor a copy into a fresh byte array. Writes do
+ * not go through the mapping: callers keep writing through the channel, and
+ * the shared mapping sees the new contents through the OS page cache. When a
+ * read falls beyond the mapped length (because the file grew since it was
+ * mapped), the file is mapped again at its current length.
+ * <p>
+ * A single mapping is limited to {@link Integer#MAX_VALUE} bytes; regions past
+ * that are read through the channel into a heap buffer instead.
+ *
+ * @Threadsafe
+ */
+public class MappedDbFile {
+
+    private final DbFileChannel channel;
+    private volatile MappedByteBuffer map;
+
+    public MappedDbFile(DbFileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Return a read-only view of length bytes at the given file offset.
+     *
+     * @return the view, positioned at 0, or null if the region extends past
+     *         the end of the file
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        long end = position + length;
+        if (end > Integer.MAX_VALUE) {
+            if (!channel.covers(end)) {
+                return null;
+            }
+            byte[] buf = new byte[length];
+            channel.read(buf, position);
+            return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+        }
+        MappedByteBuffer m = map;
+        if (m == null || end > m.capacity()) {
+            m = remap(end);
+            if (m == null) {
+                return null;
+            }
+        }
+        ByteBuffer view = m.duplicate();
+        view.position((int) position);
+        view.limit((int) end);
+        return view.slice();
+    }
+
+    /**
+     * Map the file again if it is now long enough to cover end.
+     *
+     * @return the current mapping, or null if the file is shorter than end
+     */
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        MappedByteBuffer m = map;
+        if (m != null && end <= m.capacity()) {
+            return m; // another thread remapped first
+        }
+        long size = channel.refreshSize();
+        if (end > size) {
+            return null;
+        }
+        m = channel.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+        map = m;
+        return m;
+    }
+
+    /**
+     * @return the number of bytes currently mapped
+     */
+    public int mappedLength() {
+        MappedByteBuffer m = map;
+        return m == null ? 0 : m.capacity();
+    }
+
+    /**
+     * Drop the mapping. The memory is released once the last page view over
+     * it becomes unreachable.
+     */
+    public synchronized void unmap() {
+        map = null;
+    }
+}
@@ -9,8 +9,11 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  * <p>
- * For recovery purposes, pages MUST have a single constructor of the form:
- * Page(PageId id, byte[] data)
+ * For recovery purposes, every class of page has a type code in the log
+ * (see {@link PageChange#pageType}), which LogFile uses to rebuild pages from
+ * their data. A page also carries the LSN of the last log record that
+ * describes a change to it (its pageLSN), so that the log can be forced up to
+ * that record before the page is written.
  */
 public interface Page {
 
@@ -59,4 +62,16 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * @return the LSN of the last log record describing a change to this
+     * page, or {@link LogFile#NO_LSN} if no change to it has been logged
+     */
+    long getPageLSN();
+
+    /**
+     * Set the LSN of the last log record describing a change to this page.
+     * Called by the log as it logs the change.
+     */
+    void setPageLSN(long lsn);
 }
@@ -0,0 +1,435 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * PageChange is a change to one page as it appears in the log: either the
+ * whole page, as its images before and after the change, or some slots of a
+ * {@link SlottedPage}, as their contents before and after the change. A
+ * change can be redone or undone on the data of the page, and inverted to log
+ * its undo as a compensation.
+ *
+ * @see LogFile
+ */
+class PageChange {
+
+    // page types in the log
+    static final int HEAP_PAGE = 1;
+    static final int BTREE_ROOT_PTR_PAGE = 2;
+    static final int BTREE_INTERNAL_PAGE = 3;
+    static final int BTREE_LEAF_PAGE = 4;
+    static final int BTREE_HEADER_PAGE = 5;
+
+    // flags of a slot in a slot change
+    static final int SLOT_USED_BEFORE = 1;
+    static final int SLOT_USED_AFTER = 2;
+
+    // sanity limit on lengths read from the log, so that garbage at its end is not trusted
+    private static final int MAX_LENGTH = 1 << 24;
+
+    final int pageType;
+    final int tableId;
+    final int pageNo;
+
+    // the images of a whole-page change, null for a slot change
+    private final byte[] beforeImage;
+    private final byte[] afterImage;
+
+    // a slot change
+    private final int slotSize;
+    private final int[] slots;
+    private final int[] flags;
+    private final byte[][] beforeSlots;
+    private final byte[][] afterSlots;
+
+    private PageChange(int pageType, int tableId, int pageNo, byte[] beforeImage, byte[] afterImage) {
+        this(pageType, tableId, pageNo, beforeImage, afterImage, 0, null, null, null, null);
+    }
+
+    private PageChange(int pageType, int tableId, int pageNo, byte[] beforeImage, byte[] afterImage,
+                       int slotSize, int[] slots, int[] flags, byte[][] beforeSlots, byte[][] afterSlots) {
+        this.pageType = pageType;
+        this.tableId = tableId;
+        this.pageNo = pageNo;
+        this.beforeImage = beforeImage;
+        this.afterImage = afterImage;
+        this.slotSize = slotSize;
+        this.slots = slots;
+        this.flags = flags;
+        this.beforeSlots = beforeSlots;
+        this.afterSlots = afterSlots;
+    }
+
+    /**
+     * @return the change of a page from one image to another
+     */
+    static PageChange ofImages(Page page, byte[] before, byte[] after) {
+        PageId pid = page.getId();
+        return new PageChange(pageType(page), pid.getTableId(), pid.getPageNumber(), before, after);
+    }
+
+    /**
+     * @return the change of a page from one image to another, if only slots
+     * changed, or null if the page is not slotted or the images also differ
+     * outside the slots
+     */
+    static PageChange ofSlots(Page page, byte[] before, byte[] after) {
+        if (!(page instanceof SlottedPage) || before.length != after.length) {
+            return null;
+        }
+        SlottedPage sp = (SlottedPage) page;
+        int bitmap = sp.getSlotBitmapOffset();
+        int numSlots = sp.getNumSlots();
+        int size = sp.getSlotSize();
+        int slotsEnd = sp.getSlotOffset(numSlots);
+        if (!rangeEquals(before, after, 0, bitmap) || !rangeEquals(before, after, slotsEnd, before.length)) {
+            return null;
+        }
+        int[] changed = new int[numSlots];
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            int off = sp.getSlotOffset(i);
+            if (isSlotUsed(before, bitmap, i) != isSlotUsed(after, bitmap, i)
+                    || !rangeEquals(before, after, off, off + size)) {
+                changed[n++] = i;
+            }
+        }
+        int[] flags = new int[n];
+        byte[][] beforeSlots = new byte[n][];
+        byte[][] afterSlots = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            int off = sp.getSlotOffset(changed[i]);
+            if (isSlotUsed(before, bitmap, changed[i])) {
+                flags[i] |= SLOT_USED_BEFORE;
+                beforeSlots[i] = Arrays.copyOfRange(before, off, off + size);
+            }
+            if (isSlotUsed(after, bitmap, changed[i])) {
+                flags[i] |= SLOT_USED_AFTER;
+                afterSlots[i] = Arrays.copyOfRange(after, off, off + size);
+            }
+        }
+        PageId pid = page.getId();
+        return new PageChange(pageType(page), pid.getTableId(), pid.getPageNumber(), null, null,
+                size, Arrays.copyOf(changed, n), flags, beforeSlots, afterSlots);
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isSlotUsed(byte[] pageData, int bitmapOffset, int slot) {
+        return (pageData[bitmapOffset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    /**
+     * @return true if this change has page images, false if it changes slots
+     */
+    boolean isImage() {
+        return afterImage != null;
+    }
+
+    /**
+     * @return the number of slots changed, or -1 for a whole-page change
+     */
+    int numSlots() {
+        return isImage() ? -1 : slots.length;
+    }
+
+    /**
+     * @return the record type that logs this change
+     */
+    int recordType() {
+        return isImage() ? LogFile.UPDATE_RECORD : LogFile.SLOT_UPDATE_RECORD;
+    }
+
+    PageId pageId() {
+        return pageId(pageType, tableId, pageNo);
+    }
+
+    private static PageId pageId(int pageType, int tableId, int pageNo) {
+        switch (pageType) {
+            case HEAP_PAGE:
+                return new HeapPageId(tableId, pageNo);
+            case BTREE_ROOT_PTR_PAGE:
+                return new BTreePageId(tableId, pageNo, BTreePageId.ROOT_PTR);
+            case BTREE_INTERNAL_PAGE:
+                return new BTreePageId(tableId, pageNo, BTreePageId.INTERNAL);
+            case BTREE_LEAF_PAGE:
+                return new BTreePageId(tableId, pageNo, BTreePageId.LEAF);
+            default:
+                return new BTreePageId(tableId, pageNo, BTreePageId.HEADER);
+        }
+    }
+
+    /**
+     * @return the data of the page after the change, for a whole-page change
+     */
+    byte[] afterImage() {
+        return afterImage;
+    }
+
+    /**
+     * @return the change that undoes this one
+     */
+    PageChange inverse() {
+        if (isImage()) {
+            return new PageChange(pageType, tableId, pageNo, afterImage, beforeImage);
+        }
+        int[] inverseFlags = new int[flags.length];
+        for (int i = 0; i < flags.length; i++) {
+            inverseFlags[i] = ((flags[i] & SLOT_USED_BEFORE) != 0 ? SLOT_USED_AFTER : 0)
+                    | ((flags[i] & SLOT_USED_AFTER) != 0 ? SLOT_USED_BEFORE : 0);
+        }
+        return new PageChange(pageType, tableId, pageNo, null, null,
+                slotSize, slots, inverseFlags, afterSlots, beforeSlots);
+    }
+
+    /**
+     * Apply the change to the data of the page, which must be at least as
+     * new as the page before the change.
+     *
+     * @param data   the data of the page, changed in place
+     * @param layout the page, for the layout of its slots; only used by slot changes
+     * @return the new data of the page
+     */
+    byte[] redo(byte[] data, Page layout) {
+        if (isImage()) {
+            return afterImage.clone();
+        }
+        SlottedPage sp = (SlottedPage) layout;
+        int bitmap = sp.getSlotBitmapOffset();
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            int off = sp.getSlotOffset(slot);
+            int bit = 1 << (slot % 8);
+            if ((flags[i] & SLOT_USED_AFTER) != 0) {
+                System.arraycopy(afterSlots[i], 0, data, off, slotSize);
+                data[bitmap + slot / 8] |= bit;
+            } else {
+                Arrays.fill(data, off, off + slotSize, (byte) 0);
+                data[bitmap + slot / 8] &= ~bit;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Undo the change on the data of the page.
+     *
+     * @see #redo
+     */
+    byte[] undo(byte[] data, Page layout) {
+        return inverse().redo(data, layout);
+    }
+
+    /**
+     * Serialize the change into the log.
+     */
+    void write(LogBuffer out) throws IOException {
+        //a whole-page change is:
+        // the before image and the after image, each of
+        //  page type
+        //  table id
+        //  page number
+        //  page data length
+        //  page data
+        //a slot change is:
+        // page type
+        // table id
+        // page number
+        // slot size
+        // number of slots
+        // for each slot: its number, flags, contents before and after
+        if (isImage()) {
+            writeImage(out, beforeImage);
+            writeImage(out, afterImage);
+            return;
+        }
+        out.putByte(pageType);
+        out.putInt(tableId);
+        out.putInt(pageNo);
+        out.putInt(slotSize);
+        out.putInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.putInt(slots[i]);
+            out.putByte(flags[i]);
+            if ((flags[i] & SLOT_USED_BEFORE) != 0) {
+                out.put(beforeSlots[i]);
+            }
+            if ((flags[i] & SLOT_USED_AFTER) != 0) {
+                out.put(afterSlots[i]);
+            }
+        }
+    }
+
+    private void writeImage(LogBuffer out, byte[] image) throws IOException {
+        out.putByte(pageType);
+        out.putInt(tableId);
+        out.putInt(pageNo);
+        out.putInt(image.length);
+        out.put(image);
+    }
+
+    /**
+     * Read a change logged by a record of the given type.
+     *
+     * @throws IOException if the log does not hold a valid change there
+     */
+    static PageChange read(LogReader in, int recordType) throws IOException {
+        int pageType = readPageType(in);
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        if (recordType == LogFile.UPDATE_RECORD) {
+            byte[] before = readBytes(in, in.readInt());
+            // the after image has the same page header
+            in.skip(1 + 2 * Integer.BYTES);
+            byte[] after = readBytes(in, in.readInt());
+            return new PageChange(pageType, tableId, pageNo, before, after);
+        } else if (recordType != LogFile.SLOT_UPDATE_RECORD) {
+            throw new IOException("no page change in records of type " + recordType);
+        }
+        int size = checkLength(in.readInt());
+        int n = checkLength(in.readInt());
+        int[] slots = new int[n];
+        int[] flags = new int[n];
+        byte[][] beforeSlots = new byte[n][];
+        byte[][] afterSlots = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            slots[i] = checkLength(in.readInt());
+            flags[i] = in.readByte();
+            if ((flags[i] & SLOT_USED_BEFORE) != 0) {
+                beforeSlots[i] = readBytes(in, size);
+            }
+            if ((flags[i] & SLOT_USED_AFTER) != 0) {
+                afterSlots[i] = readBytes(in, size);
+            }
+        }
+        return new PageChange(pageType, tableId, pageNo, null, null, size, slots, flags, beforeSlots, afterSlots);
+    }
+
+    /**
+     * Serialize a page id as the page type, table id and page number.
+     */
+    static void writePageId(LogBuffer out, PageId pid) throws IOException {
+        out.putByte(pageType(pid));
+        out.putInt(pid.getTableId());
+        out.putInt(pid.getPageNumber());
+    }
+
+    static PageId readPageId(LogReader in) throws IOException {
+        int pageType = readPageType(in);
+        int tableId = in.readInt();
+        return pageId(pageType, tableId, in.readInt());
+    }
+
+    private static int readPageType(LogReader in) throws IOException {
+        int pageType = in.readByte();
+        if (pageType < HEAP_PAGE || pageType > BTREE_HEADER_PAGE) {
+            throw new IOException("unknown page type " + pageType + " in log");
+        }
+        return pageType;
+    }
+
+    private static byte[] readBytes(LogReader in, int length) throws IOException {
+        byte[] bytes = new byte[checkLength(length)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("invalid length " + length + " in log");
+        }
+        return length;
+    }
+
+    /**
+     * @return the type code of the page in the log
+     */
+    static int pageType(Page p) {
+        if (p instanceof HeapPage) {
+            return HEAP_PAGE;
+        } else if (p instanceof BTreeLeafPage) {
+            return BTREE_LEAF_PAGE;
+        } else if (p instanceof BTreeInternalPage) {
+            return BTREE_INTERNAL_PAGE;
+        } else if (p instanceof BTreeRootPtrPage) {
+            return BTREE_ROOT_PTR_PAGE;
+        } else if (p instanceof BTreeHeaderPage) {
+            return BTREE_HEADER_PAGE;
+        }
+        throw new IllegalArgumentException("cannot log pages of " + p.getClass());
+    }
+
+    /**
+     * @return the type code of the page with the given id in the log
+     */
+    static int pageType(PageId pid) {
+        if (pid instanceof HeapPageId) {
+            return HEAP_PAGE;
+        }
+        switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return BTREE_ROOT_PTR_PAGE;
+            case BTreePageId.INTERNAL:
+                return BTREE_INTERNAL_PAGE;
+            case BTreePageId.LEAF:
+                return BTREE_LEAF_PAGE;
+            default:
+                return BTREE_HEADER_PAGE;
+        }
+    }
+
+    /**
+     * Construct the page changed by this change from its data.
+     */
+    Page newPage(byte[] pageData) throws IOException {
+        PageId pid = pageId();
+        switch (pageType) {
+            case HEAP_PAGE:
+                return new HeapPage((HeapPageId) pid, pageData);
+            case BTREE_ROOT_PTR_PAGE:
+                return new BTreeRootPtrPage((BTreePageId) pid, pageData);
+            case BTREE_INTERNAL_PAGE:
+                return new BTreeInternalPage((BTreePageId) pid, pageData, keyField(tableId));
+            case BTREE_LEAF_PAGE:
+                return new BTreeLeafPage((BTreePageId) pid, pageData, keyField(tableId));
+            default:
+                return new BTreeHeaderPage((BTreePageId) pid, pageData);
+        }
+    }
+
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
+
+    @Override
+    public String toString() {
+        String page = "table " + tableId + " page " + pageNo + " (type " + pageType + ")";
+        if (isImage()) {
+            return page + ", images of " + beforeImage.length + " and " + afterImage.length + " bytes";
+        }
+        StringBuilder sb = new StringBuilder(page);
+        for (int i = 0; i < slots.length; i++) {
+            boolean usedBefore = (flags[i] & SLOT_USED_BEFORE) != 0;
+            boolean usedAfter = (flags[i] & SLOT_USED_AFTER) != 0;
+            sb.append(", slot ").append(slots[i])
+                    .append(!usedBefore ? " inserted" : !usedAfter ? " cleared" : " replaced");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Asynchronous sequential read-ahead for heap files.
+ * <p>
+ * Each scan gets a {@link Stream} from {@link #newStream}, and the
+ * {@link BufferPool} reports the pages the scan pins in order to it. Once a
+ * scan reads its table sequentially, the next pages are read on a small
+ * background I/O executor while the scan is still busy with the current page.
+ * Other page accesses are not reported, so concurrent scans of one table do
+ * not disturb each other's window. Pages
+ * read ahead are not installed in the pool; they wait in a staging area until
+ * the scan misses on them, and the miss then takes the page instead of going
+ * to disk. The page is installed by the normal miss path, so pins, scan
+ * rings and eviction behave exactly as for a synchronous read.
+ * <p>
+ * The window starts at {@link #MIN_WINDOW} pages and doubles with every batch
+ * while the access stays sequential, up to the configured maximum. A
+ * non-sequential access resets the window and drops whatever the scan read
+ * ahead. At most one batch per scan is in flight, and at most one window of
+ * pages per scan is staged; {@link #closed} drops what a finished scan left.
+ * <p>
+ * A staged page is a copy of what was on disk when it was read. Whenever the
+ * buffer pool has written a page back, or discards it, the staged copy is
+ * dropped with {@link #invalidate}; a copy staged after the write already
+ * holds the new contents.
+ *
+ * @Threadsafe
+ */
+class ReadAhead {
+
+    static final int MIN_WINDOW = 4;
+
+    /**
+     * Shared by all buffer pools: the executor only issues reads, and its
+     * threads are daemons so that it never keeps the JVM alive.
+     */
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Sequential-access state of one scan. Only the scan's thread reports
+     * accesses, but the executor clears {@link #busy} when a batch is done.
+     */
+    static class Stream {
+        int tableId = -1;
+        int last = -2;
+        int window = MIN_WINDOW;
+        int issuedUpTo = -1;
+        boolean busy = false;
+    }
+
+    private final BufferPool pool;
+    private volatile int maxWindow;
+    private final ConcurrentMap<PageId, StagedPage> staged = new ConcurrentHashMap<>();
+
+    /**
+     * A page being read ahead, and the scan it is read for.
+     */
+    private static class StagedPage extends CompletableFuture<Page> {
+        final Stream stream;
+
+        StagedPage(Stream stream) {
+            this.stream = stream;
+        }
+    }
+
+    ReadAhead(BufferPool pool, int maxWindow) {
+        this.pool = pool;
+        this.maxWindow = maxWindow;
+    }
+
+    int getMaxWindow() {
+        return maxWindow;
+    }
+
+    /**
+     * @param maxWindow the most pages read ahead of a scan; values below
+     *                  {@link #MIN_WINDOW} disable read-ahead
+     */
+    void setMaxWindow(int maxWindow) {
+        this.maxWindow = maxWindow;
+        if (maxWindow < MIN_WINDOW) {
+            staged.clear();
+        }
+    }
+
+    Stream newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Take a page that was read ahead, waiting for its read to finish if it
+     * is still in flight.
+     *
+     * @return the page, or null if it was not read ahead (or the read failed)
+     */
+    Page take(PageId pid) {
+        CompletableFuture<Page> f = staged.remove(pid);
+        return f == null ? null : f.join();
+    }
+
+    /**
+     * Drop the staged copy of a page, if any, because the page on disk is
+     * about to change or the cached page is being discarded.
+     */
+    void invalidate(PageId pid) {
+        staged.remove(pid);
+    }
+
+    /**
+     * Record that a scan pinned a page and, if the access continues the
+     * scan's sequential run, read further pages of the table ahead.
+     */
+    void accessed(Stream s, PageId pid) {
+        int max = maxWindow;
+        if (max < MIN_WINDOW || !(pid instanceof HeapPageId)) {
+            return;
+        }
+        int tableId = pid.getTableId();
+        int n = pid.getPageNumber();
+        int from, to;
+        synchronized (s) {
+            if (tableId == s.tableId && n == s.last) {
+                return;
+            }
+            if (tableId != s.tableId || n != s.last + 1) {
+                // random access: start over with a small window
+                dropStaged(s);
+                s.tableId = tableId;
+                s.last = n;
+                s.window = MIN_WINDOW;
+                s.issuedUpTo = n;
+                return;
+            }
+            s.last = n;
+            // issue the next batch once the scan is half way into the last one
+            if (s.busy || n + s.window / 2 < s.issuedUpTo) {
+                return;
+            }
+            s.window = Math.min(max, s.issuedUpTo > n ? s.window * 2 : s.window);
+            from = Math.max(n, s.issuedUpTo) + 1;
+            to = Math.min(n + s.window, numPages(tableId) - 1);
+            if (from > to) {
+                return;
+            }
+            s.issuedUpTo = to;
+            s.busy = true;
+        }
+
+        List<PageId> batch = new ArrayList<>(to - from + 1);
+        List<CompletableFuture<Page>> futures = new ArrayList<>(to - from + 1);
+        for (int i = from; i <= to; i++) {
+            HeapPageId next = new HeapPageId(tableId, i);
+            StagedPage f = new StagedPage(s);
+            if (!pool.isResident(next) && staged.putIfAbsent(next, f) == null) {
+                batch.add(next);
+                futures.add(f);
+            }
+        }
+        if (batch.isEmpty()) {
+            synchronized (s) {
+                s.busy = false;
+            }
+            return;
+        }
+        IO_EXECUTOR.execute(() -> {
+            try {
+                DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+                for (int i = 0; i < batch.size(); i++) {
+                    Page page = null;
+                    try {
+                        page = file.readPage(batch.get(i));
+                    } catch (RuntimeException e) {
+                        // the scan will read the page itself
+                    }
+                    futures.get(i).complete(page);
+                }
+            } catch (RuntimeException e) {
+                // the table was dropped: release anyone waiting
+                for (CompletableFuture<Page> f : futures) {
+                    f.complete(null);
+                }
+            } finally {
+                synchronized (s) {
+                    s.busy = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the pages read ahead for a scan that has finished.
+     */
+    void closed(Stream s) {
+        synchronized (s) {
+            dropStaged(s);
+            s.tableId = -1;
+        }
+    }
+
+    // drop the pages the scan read ahead and has not taken, but not those of other scans
+    private void dropStaged(Stream s) {
+        for (int i = s.last + 1; i <= s.issuedUpTo; i++) {
+            PageId pid = new HeapPageId(s.tableId, i);
+            StagedPage f = staged.get(pid);
+            if (f != null && f.stream == s) {
+                staged.remove(pid, f);
+            }
+        }
+    }
+
+    private static int numPages(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        return file instanceof HeapFile ? ((HeapFile) file).numPages() : 0;
+    }
+}
@@ -0,0 +1,34 @@
+package simpledb.storage;
+
+/**
+ * A page whose tuples are stored in fixed-size slots. The page data is laid
+ * out as some header bytes, a bitmap of the used slots (bit i % 8 of byte
+ * i / 8 for slot i), the slots, and padding; an empty slot is all zeroes.
+ * <p>
+ * The log describes most changes to such pages slot by slot instead of with
+ * page images, see {@link LogFile#logWrite}.
+ */
+public interface SlottedPage extends Page {
+
+    /**
+     * @return the offset of the bitmap of used slots in the page data
+     */
+    int getSlotBitmapOffset();
+
+    /**
+     * @return the number of slots on this page
+     */
+    int getNumSlots();
+
+    /**
+     * @return the size of a slot in bytes
+     */
+    int getSlotSize();
+
+    /**
+     * @return the offset of the given slot in the page data
+     */
+    default int getSlotOffset(int slot) {
+        return getSlotBitmapOffset() + (getNumSlots() + 7) / 8 + slot * getSlotSize();
+    }
+}
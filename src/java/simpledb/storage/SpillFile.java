@@ -0,0 +1,152 @@
+package simpledb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary, append-only heap file that operators spill intermediate
+ * tuples to when they run out of memory.
+ * <p>
+ * Pages use the {@link HeapPage} format, but the file is private to the
+ * operator that created it: it is not in the catalog, and it is written and
+ * read page by page directly, bypassing the buffer pool, the lock manager and
+ * the log. Only the page being filled is held in memory. The file is deleted
+ * by {@link #close()}, or at the latest when the JVM exits.
+ */
+public class SpillFile implements Closeable {
+
+    private final TupleDesc td;
+    private final File file;
+    private final DbFileChannel channel;
+    private final int tableId;
+    private final int slotsPerPage;
+    private final int headerSize;
+
+    // tuples of the page being filled, serialized back to back
+    private final ByteArrayOutputStream pending;
+    private final DataOutputStream out;
+    private int pendingTuples;
+    private int numPages;
+    private long numTuples;
+
+    /**
+     * Create an empty spill file for tuples of the given schema.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("simpledb", ".spill");
+        this.file.deleteOnExit();
+        this.channel = new DbFileChannel(file);
+        this.tableId = file.getAbsoluteFile().hashCode();
+        this.slotsPerPage = HeapPage.slotsPerPage(td);
+        this.headerSize = (slotsPerPage + 7) / 8;
+        this.pending = new ByteArrayOutputStream(slotsPerPage * td.getSize());
+        this.out = new DataOutputStream(pending);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples added so far
+     */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * Append a tuple. The tuple itself is not modified.
+     */
+    public void add(Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            t.getField(i).serialize(out);
+        }
+        numTuples++;
+        if (++pendingTuples == slotsPerPage) {
+            flush();
+        }
+    }
+
+    /**
+     * Write out the page being filled, if it holds any tuples.
+     */
+    private void flush() throws IOException {
+        if (pendingTuples == 0) {
+            return;
+        }
+        byte[] page = new byte[BufferPool.getPageSize()];
+        for (int i = 0; i < pendingTuples / 8; i++) {
+            page[i] = (byte) 0xff;
+        }
+        if (pendingTuples % 8 != 0) {
+            page[pendingTuples / 8] = (byte) ((1 << (pendingTuples % 8)) - 1);
+        }
+        out.flush();
+        byte[] tuples = pending.toByteArray();
+        System.arraycopy(tuples, 0, page, headerSize, tuples.length);
+        channel.write(page, (long) numPages * page.length);
+        numPages++;
+        pending.reset();
+        pendingTuples = 0;
+    }
+
+    /**
+     * @return an iterator over all tuples added so far, in the order they
+     *         were added. Tuples added later are not seen by the iterator.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        flush();
+        final int pages = numPages;
+        return new Iterator<Tuple>() {
+            private int next = 0;
+            private Iterator<Tuple> it = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!it.hasNext() && next < pages) {
+                    it = readPage(next++).iterator();
+                }
+                return it.hasNext();
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+        };
+    }
+
+    private HeapPage readPage(int pgNo) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            channel.read(data, (long) pgNo * data.length);
+            return new HeapPage(new HeapPageId(tableId, pgNo), td, ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Delete the file. The spill file cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // deleting the file is what matters
+        }
+        file.delete();
+    }
+}
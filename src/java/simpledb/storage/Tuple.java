@@ -110,6 +110,27 @@ public class Tuple implements Serializable {
         return (Iterator<Field>) Arrays.asList(fields).iterator();
     }
 
+    /**
+     * Concatenate two tuples, such as the ones a join matched, into a new
+     * tuple with the fields of t1 followed by those of t2.
+     *
+     * @param td the schema of the result, usually
+     *           {@link TupleDesc#merge(TupleDesc, TupleDesc)} of theirs
+     * @return the new tuple; it has no RecordId
+     */
+    public static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        // through getField, which decodes the fields of a HeapTuple
+        Tuple t = new Tuple(td);
+        int n1 = t1.fields.length;
+        for (int i = 0; i < n1; i++) {
+            t.fields[i] = t1.getField(i);
+        }
+        for (int i = 0; i < t2.fields.length; i++) {
+            t.fields[n1 + i] = t2.getField(i);
+        }
+        return t;
+    }
+
     /**
      * reset the TupleDesc of this tuple (only affecting the TupleDesc)
      */
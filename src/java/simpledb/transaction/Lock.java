@@ -2,9 +2,15 @@ package simpledb.transaction;
 
 import simpledb.common.Permissions;
 
+import java.util.concurrent.locks.Condition;
+
 public class Lock {
     private TransactionId transactionId;
     private Permissions permissions;
+    //以下字段由LockManager持有该页的latch时读写
+    boolean granted;  //请求是否已被授予
+    boolean cancelled;  //等待中的请求被取消（事务已结束）
+    Condition wakeup;  //请求排队等待时，授予或取消后只唤醒这一个等待线程
 
     public Lock(TransactionId transactionId,Permissions permissions){
         this.transactionId =  transactionId;
@@ -3,116 +3,458 @@ package simpledb.transaction;
 import simpledb.common.Permissions;
 import simpledb.storage.PageId;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Page-level shared/exclusive locks with per-page FIFO wait queues and
+ * wait-for-graph deadlock detection.
+ * <p>
+ * A request that cannot be granted is appended to the page's wait queue and
+ * the requesting thread parks until a release grants it. Waiters are granted
+ * strictly in queue order, so a stream of readers cannot starve a writer. A
+ * transaction upgrading its shared lock to an exclusive one goes to the head
+ * of the queue, ahead of new requests.
+ * <p>
+ * A waiting request waits for every other transaction that holds a
+ * conflicting lock on its page, and for every conflicting request queued
+ * ahead of it. These are the edges of the wait-for graph, which is derived
+ * from the lock table rather than stored separately. Only the edges of the
+ * transaction that is about to block are new, so any new cycle must pass
+ * through it: the check runs once per block, from the blocking transaction.
+ * The youngest transaction of a cycle (the one with the highest id, which
+ * has done the least work) is chosen as the victim. Its pending requests are
+ * cancelled and its waiting threads throw {@link TransactionAbortedException}
+ * right away; its caller is expected to abort it, which releases its locks.
+ * <p>
+ * Each page's lock state has its own latch, held only for short,
+ * non-blocking sections, so that requests for different pages never contend,
+ * and a request that is granted right away touches nothing else. A request
+ * that has to wait gets its own {@link Condition}, which is signalled only
+ * when that request is granted or cancelled. The wait-for graph has a
+ * separate lock, which only a request that blocks takes, to record what it
+ * waits for and check for cycles; while holding it, the check latches one
+ * page at a time. The requests that block are serialized on it, so of the
+ * transactions closing a cycle, the one checking last sees it.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    ConcurrentHashMap<PageId, ArrayList<Lock>> mapPageLocks;
+
+    /**
+     * Wait indefinitely, until the lock is granted or the transaction is
+     * chosen as a deadlock victim.
+     */
+    public static final long NO_TIMEOUT = -1;
+
+    /**
+     * Lock state of one page, guarded by its latch.
+     */
+    private static class PageLock {
+        final ReentrantLock latch = new ReentrantLock();
+        final List<Lock> holders = new ArrayList<>(2);
+        final ArrayDeque<Lock> waiters = new ArrayDeque<>();
+        //已从锁表中移除，需要重新查找该页
+        boolean retired;
+
+        Lock holder(TransactionId tid) {
+            for (Lock l : holders) {
+                if (l.getTransactionId().equals(tid)) {
+                    return l;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final ConcurrentMap<PageId, PageLock> pageLocks;
+    //每个事务持有或等待锁的页，用于事务结束时释放
+    private final ConcurrentMap<TransactionId, Set<PageId>> txnPages;
+    //每个事务正在等待的页（同一事务可能有多个线程在等待），即等待图中的出边来源. protected by graphLock
+    private final Map<TransactionId, List<PageId>> waiting;
+    private final Object graphLock = new Object();
 
     public LockManager() {
-        mapPageLocks = new ConcurrentHashMap<>();
+        pageLocks = new ConcurrentHashMap<>();
+        txnPages = new ConcurrentHashMap<>();
+        waiting = new HashMap<>();
     }
 
     /**
-     * 获取锁
-     * @param tid
-     * @param pageId
-     * @param permissions
-     * @return
+     * 获取锁，无法立即授予时在该页的等待队列中阻塞，直到授予或被选为死锁牺牲者
+     *
+     * @param tid         the transaction requesting the lock
+     * @param pageId      the page to lock
+     * @param permissions READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     break a deadlock, or completed while waiting
      */
-    public synchronized  Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions){
-        Lock lock = new Lock(tid, permissions);
-        ArrayList<Lock> locks = mapPageLocks.get(pageId);
-        // 页面没有锁则创建锁
-        if(locks==null || locks.size()==0){
-            locks = new ArrayList<>();
-            locks.add(lock);
-            mapPageLocks.put(pageId,locks);
-            return true;
-        }
-
-
-        if(locks.size()==1){
-            //当只有一个事务抢占锁
-            Lock curLock = locks.get(0);
-            if(curLock.getTransactionId().equals(tid)){
-                //判断是否进行锁升级
-                if(curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_WRITE)){
-                    curLock.setPermissions(Permissions.READ_WRITE);
+    public void acquireLock(TransactionId tid, PageId pageId, Permissions permissions)
+            throws TransactionAbortedException {
+        acquireLock(tid, pageId, permissions, NO_TIMEOUT);
+    }
+
+    /**
+     * Like {@link #acquireLock(TransactionId, PageId, Permissions)}, but gives
+     * up after the given time.
+     *
+     * @param timeoutMillis how long to wait, or {@link #NO_TIMEOUT}
+     * @throws TransactionAbortedException also if the lock was not granted in time
+     */
+    public void acquireLock(TransactionId tid, PageId pageId, Permissions permissions,
+                            long timeoutMillis) throws TransactionAbortedException {
+        PageLock pl = latch(pageId);
+        Lock request;
+        try {
+            Lock held = pl.holder(tid);
+            if (held != null && (held.getPermissions() == Permissions.READ_WRITE
+                    || permissions == Permissions.READ_ONLY)) {
+                return;
+            }
+            txnPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pageId);
+
+            request = new Lock(tid, permissions);
+            boolean upgrade = held != null;
+            if ((upgrade || pl.waiters.isEmpty()) && grantable(pl, request)) {
+                grant(pl, request);
+                return;
+            }
+            //锁升级排在队首，其余请求按先来先服务排队
+            if (upgrade) {
+                pl.waiters.addFirst(request);
+            } else {
+                pl.waiters.addLast(request);
+            }
+            request.wakeup = pl.latch.newCondition();
+        } finally {
+            pl.latch.unlock();
+        }
+
+        //只有需要阻塞的请求才进入等待图
+        try {
+            synchronized (graphLock) {
+                waiting.computeIfAbsent(tid, k -> new ArrayList<>(1)).add(pageId);
+                breakDeadlocks(tid);
+            }
+            waitFor(pl, request, timeoutMillis);
+        } finally {
+            synchronized (graphLock) {
+                List<PageId> waitingOn = waiting.get(tid);
+                if (waitingOn != null) {
+                    waitingOn.remove(pageId);
+                    if (waitingOn.isEmpty()) {
+                        waiting.remove(tid);
+                    }
                 }
-                return true;
-            }else{
-                if(curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_ONLY)){
-                    locks.add(lock);
-                    return true;
+            }
+            pl.latch.lock();
+            try {
+                if (!request.granted && pl.waiters.remove(request)) {
+                    //离开队列可能使排在后面的请求可以授予
+                    grantWaiters(pl);
                 }
-                return false;
+                retireIfUnused(pageId, pl);
+            } finally {
+                pl.latch.unlock();
             }
         }
+    }
 
-        //当有多个事务抢占锁，说明必然是多个读事务
-        if(lock.getPermissions().equals(Permissions.READ_WRITE)){
-            return false;
+    /**
+     * @return the lock state of the page, latched; never one that has been retired
+     */
+    private PageLock latch(PageId pageId) {
+        while (true) {
+            PageLock pl = pageLocks.get(pageId);
+            if (pl == null) {
+                pl = pageLocks.computeIfAbsent(pageId, k -> new PageLock());
+            }
+            pl.latch.lock();
+            if (!pl.retired) {
+                return pl;
+            }
+            pl.latch.unlock();
         }
+    }
 
-        //该事务如果
-        for(Lock l: locks){
-            if(l.getTransactionId().equals(lock.getTransactionId())){
-                return true;
+    /**
+     * Park until the request is granted or cancelled.
+     */
+    private void waitFor(PageLock pl, Lock request, long timeoutMillis) throws TransactionAbortedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        pl.latch.lock();
+        try {
+            while (!request.granted) {
+                if (request.cancelled) {
+                    throw new TransactionAbortedException();
+                }
+                if (timeoutMillis == NO_TIMEOUT) {
+                    request.wakeup.await();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TransactionAbortedException();
+                    }
+                    request.wakeup.await(remaining, TimeUnit.MILLISECONDS);
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            pl.latch.unlock();
         }
-        locks.add(lock);
-        return true;
     }
+
     /**
-     * 释放锁
-     * @param tid
-     * @param pageId
+     * Look for cycles through tid, which is about to block, and break each one
+     * by aborting its youngest transaction. Called holding graphLock.
+     *
+     * @throws TransactionAbortedException if tid itself is the victim
      */
-    public synchronized  void releaseLock(TransactionId tid,PageId pageId){
-        ArrayList<Lock> locks = mapPageLocks.get(pageId);
-        for(Lock l:locks){
-            if(l.getTransactionId().equals(tid)){
-                locks.remove(l);
-                if(locks.size()==0){
-                    mapPageLocks.remove(pageId);
+    private void breakDeadlocks(TransactionId tid) throws TransactionAbortedException {
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(tid)) != null) {
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) {
+                    victim = t;
                 }
-                return;
             }
+            if (victim.equals(tid)) {
+                throw new TransactionAbortedException();
+            }
+            cancelWaits(victim);
         }
     }
 
     /**
-     * 释放当前事务的所有锁
-     * @param tid
+     * @return the transactions on a cycle of the wait-for graph through
+     *         start, or null if there is none
      */
-    public synchronized  void releaseAllLock(TransactionId tid){
-        for(PageId pid: mapPageLocks.keySet()){
-            ArrayList<Lock> locks = mapPageLocks.get(pid);
-            for(Lock lock:locks){
-                if(lock.getTransactionId().equals(tid)){
-                    locks.remove(lock);
-                    if(locks.size()==0){
-                        mapPageLocks.remove(pid);
+    private List<TransactionId> findCycle(TransactionId start) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(start);
+        return findCycle(start, start, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId start, TransactionId t, List<TransactionId> path,
+                              Set<TransactionId> visited) {
+        for (TransactionId next : waitsFor(t)) {
+            if (next.equals(start)) {
+                return true;
+            }
+            if (visited.add(next)) {
+                path.add(next);
+                if (findCycle(start, next, path, visited)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the transactions t waits for: other holders of a conflicting
+     *         lock, and other conflicting requests queued ahead of t's
+     */
+    private Set<TransactionId> waitsFor(TransactionId t) {
+        Set<TransactionId> res = new HashSet<>();
+        List<PageId> pages = waiting.get(t);
+        if (pages == null) {
+            return res;
+        }
+        for (PageId pageId : pages) {
+            PageLock pl = pageLocks.get(pageId);
+            if (pl == null) {
+                continue;
+            }
+            pl.latch.lock();
+            try {
+                List<Lock> ahead = new ArrayList<>();
+                for (Lock w : pl.waiters) {
+                    if (w.getTransactionId().equals(t)) {
+                        for (Lock h : pl.holders) {
+                            if (conflicts(w, h)) {
+                                res.add(h.getTransactionId());
+                            }
+                        }
+                        for (Lock a : ahead) {
+                            if (conflicts(w, a)) {
+                                res.add(a.getTransactionId());
+                            }
+                        }
                     }
-                    break;
+                    ahead.add(w);
                 }
+            } finally {
+                pl.latch.unlock();
             }
         }
+        return res;
     }
 
-    public synchronized Boolean holdsLock(TransactionId tid, PageId p) {
-        List<Lock> locks = mapPageLocks.get(p.getPageNumber());
-        for (int i = 0; i < locks.size(); i++) {
-            Lock lock = locks.get(i);
-            if (lock.getTransactionId().equals(tid)) {
-                return true;
+    private static boolean conflicts(Lock request, Lock other) {
+        return !other.getTransactionId().equals(request.getTransactionId())
+                && (request.getPermissions() == Permissions.READ_WRITE
+                || other.getPermissions() == Permissions.READ_WRITE);
+    }
+
+    /**
+     * Cancel every queued request of a deadlock victim and wake its waiters.
+     * Called holding graphLock.
+     */
+    private void cancelWaits(TransactionId tid) {
+        List<PageId> pages = waiting.get(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pageId : new ArrayList<>(pages)) {
+            PageLock pl = pageLocks.get(pageId);
+            if (pl == null) {
+                continue;
+            }
+            pl.latch.lock();
+            try {
+                cancelWaits(pl, tid);
+            } finally {
+                pl.latch.unlock();
             }
         }
-        return false;
     }
 
+    // cancel the transaction's requests queued on a latched page
+    private static void cancelWaits(PageLock pl, TransactionId tid) {
+        boolean cancelled = false;
+        for (Iterator<Lock> it = pl.waiters.iterator(); it.hasNext(); ) {
+            Lock w = it.next();
+            if (w.getTransactionId().equals(tid)) {
+                w.cancelled = true;
+                w.wakeup.signal();
+                it.remove();
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            grantWaiters(pl);
+        }
+    }
+
+    private static boolean grantable(PageLock pl, Lock request) {
+        for (Lock h : pl.holders) {
+            if (conflicts(request, h)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private static void grant(PageLock pl, Lock request) {
+        Lock held = pl.holder(request.getTransactionId());
+        if (held != null) {
+            held.setPermissions(Permissions.READ_WRITE);
+        } else {
+            pl.holders.add(request);
+        }
+        request.granted = true;
+    }
+
+    /**
+     * Grant waiters from the head of the queue for as long as they are
+     * compatible with the current holders, waking only the threads granted.
+     */
+    private static void grantWaiters(PageLock pl) {
+        while (!pl.waiters.isEmpty() && grantable(pl, pl.waiters.peekFirst())) {
+            Lock w = pl.waiters.pollFirst();
+            grant(pl, w);
+            w.wakeup.signal();
+        }
+    }
+
+    private void retireIfUnused(PageId pageId, PageLock pl) {
+        if (pl.holders.isEmpty() && pl.waiters.isEmpty()) {
+            pl.retired = true;
+            pageLocks.remove(pageId, pl);
+        }
+    }
+
+    /**
+     * 释放锁
+     * @param tid
+     * @param pageId
+     */
+    public void releaseLock(TransactionId tid, PageId pageId) {
+        PageLock pl = pageLocks.get(pageId);
+        if (pl == null) {
+            return;
+        }
+        pl.latch.lock();
+        try {
+            release(tid, pageId, pl);
+        } finally {
+            pl.latch.unlock();
+        }
+    }
+
+    private void release(TransactionId tid, PageId pageId, PageLock pl) {
+        if (pl.retired) {
+            return;
+        }
+        Lock held = pl.holder(tid);
+        if (held != null) {
+            pl.holders.remove(held);
+            grantWaiters(pl);
+        }
+        retireIfUnused(pageId, pl);
+    }
+
+    /**
+     * 释放当前事务的所有锁，并取消它仍在等待的请求
+     * @param tid
+     */
+    public void releaseAllLock(TransactionId tid) {
+        Set<PageId> pages = txnPages.remove(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pageId : pages) {
+            PageLock pl = pageLocks.get(pageId);
+            if (pl == null) {
+                continue;
+            }
+            pl.latch.lock();
+            try {
+                cancelWaits(pl, tid);
+                release(tid, pageId, pl);
+            } finally {
+                pl.latch.unlock();
+            }
+        }
+    }
+
+    public boolean holdsLock(TransactionId tid, PageId p) {
+        PageLock pl = pageLocks.get(p);
+        if (pl == null) {
+            return false;
+        }
+        pl.latch.lock();
+        try {
+            return !pl.retired && pl.holder(tid) != null;
+        } finally {
+            pl.latch.unlock();
+        }
+    }
 
 }
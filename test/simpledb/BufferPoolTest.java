@@ -0,0 +1,228 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // 504 two-int tuples fit on a page, so this is ~10 pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Small pools keep a single shard; large pools are partitioned.
+     */
+    @Test
+    public void numShards() {
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES / 2).getNumShards());
+        assertEquals(4, new BufferPool(64, 4).getNumShards());
+        int shards = new BufferPool(4096).getNumShards();
+        assertTrue(shards >= 1 && Integer.bitCount(shards) == 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void numShardsNotPowerOfTwo() {
+        new BufferPool(64, 3);
+    }
+
+    /**
+     * A pinned page survives a scan that cycles the rest of the pool.
+     */
+    @Test
+    public void pinnedPageNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapPageId pid0 = new HeapPageId(hf.getId(), 0);
+        Object page0 = bp.pinPage(tid, pid0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid0));
+
+        for (int i = 1; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertSame(page0, bp.getPage(tid, pid0, Permissions.READ_ONLY));
+
+        bp.unpinPage(pid0);
+        assertEquals(0, bp.getPinCount(pid0));
+    }
+
+    /**
+     * When every frame is pinned, getPage fails instead of growing the pool.
+     */
+    @Test
+    public void allPinnedFails() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException when all frames are pinned");
+        } catch (DbException expected) {
+        }
+    }
+
+    /**
+     * A scan leaves no pins behind once it is closed.
+     */
+    @Test
+    public void scanReleasesPins() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), i)));
+        }
+    }
+
+    /**
+     * A scan over a table larger than the pool reads through a ring and
+     * leaves pages it did not read in the pool.
+     */
+    @Test
+    public void scanRingKeepsWorkingSet() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        assertNull(bp.scanRingFor(small.numPages()));
+        assertNotNull(bp.scanRingFor(hf.numPages()));
+
+        HeapPageId hot0 = new HeapPageId(small.getId(), 0);
+        HeapPageId hot1 = new HeapPageId(small.getId(), 1);
+        Object page0 = bp.getPage(tid, hot0, Permissions.READ_ONLY);
+        Object page1 = bp.getPage(tid, hot1, Permissions.READ_ONLY);
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+
+        assertSame(page0, bp.getPage(tid, hot0, Permissions.READ_ONLY));
+        assertSame(page1, bp.getPage(tid, hot1, Permissions.READ_ONLY));
+    }
+
+    /**
+     * The read-ahead window defaults to a quarter of the pool, capped, and
+     * tiny pools do not read ahead at all.
+     */
+    @Test
+    public void readAheadWindow() {
+        assertEquals(12, new BufferPool(50).getReadAheadWindow());
+        assertEquals(32, new BufferPool(1000).getReadAheadWindow());
+        assertEquals(0, new BufferPool(8).getReadAheadWindow());
+
+        BufferPool bp = new BufferPool(50);
+        bp.setReadAheadWindow(16);
+        assertEquals(16, bp.getReadAheadWindow());
+        bp.setReadAheadWindow(2);
+        assertEquals(0, bp.getReadAheadWindow());
+    }
+
+    /**
+     * A cold scan that reads ahead sees every tuple exactly once.
+     */
+    @Test
+    public void readAheadScan() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertTrue(bp.getReadAheadWindow() > 0);
+        for (int pass = 0; pass < 2; pass++) {
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(504 * 10, count);
+        }
+    }
+
+    /**
+     * Two scans of one table, one some pages behind the other, each keep
+     * their read-ahead going: the scanning thread reads few pages itself.
+     */
+    @Test
+    public void readAheadPerScan() throws Exception {
+        Thread scanner = Thread.currentThread();
+        AtomicInteger scannerReads = new AtomicInteger();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 20, 1000, null, new ArrayList<>());
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override
+            public Page readPage(PageId pid) {
+                if (Thread.currentThread() == scanner) {
+                    scannerReads.incrementAndGet();
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        DbFileIterator ahead = table.iterator(tid);
+        ahead.open();
+        for (int i = 0; i < 504 * 10; i++) {
+            assertTrue(ahead.hasNext());
+            ahead.next();
+        }
+        DbFileIterator behind = table.iterator(tid);
+        behind.open();
+        int count = 504 * 10;
+        while (ahead.hasNext() || behind.hasNext()) {
+            for (int i = 0; i < 504 && ahead.hasNext(); i++, count++) {
+                ahead.next();
+            }
+            for (int i = 0; i < 504 && behind.hasNext(); i++, count++) {
+                behind.next();
+            }
+        }
+        ahead.close();
+        behind.close();
+        assertEquals(504 * 40, count);
+        assertTrue("the scans read " + scannerReads.get() + " pages themselves", scannerReads.get() < 6);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -125,6 +125,55 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * The memory-mapped read path returns the same pages as the channel path,
+     * and picks up pages appended after the file was mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid0 = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid0).getPageData();
+
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        assertArrayEquals(expected, hf.readPage(pid0).getPageData());
+
+        HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+        try {
+            hf.readPage(pid1);
+            fail("expected exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+        hf.writePage(new HeapPage(pid1, expected));
+        assertEquals(2, hf.numPages());
+        HeapPage page1 = (HeapPage) hf.readPage(pid1);
+        assertEquals(484, page1.getNumUnusedSlots());
+        assertEquals(pid1, page1.getId());
+
+        hf.setMemoryMapped(false);
+        assertArrayEquals(expected, hf.readPage(pid1).getPageData());
+    }
+
+    /**
+     * A read interrupted by a thread interrupt closes the file channel; the
+     * next read opens it again.
+     */
+    @Test
+    public void readPageAfterInterrupt() {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+
+        Thread.currentThread().interrupt();
+        try {
+            hf.readPage(pid);
+            fail("expected exception");
+        } catch (RuntimeException ignored) {
+        } finally {
+            Thread.interrupted();
+        }
+        assertArrayEquals(expected, hf.readPage(pid).getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -12,6 +12,8 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -90,6 +92,56 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Once full pages are known, inserts go straight to a page with room
+     * instead of reading the whole table again.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        class CountingHeapFile extends HeapFile {
+            int reads = 0;
+
+            CountingHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) {
+                reads++;
+                return super.readPage(pid);
+            }
+        }
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 10, 1000, null, new ArrayList<>());
+        CountingHeapFile hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        hf.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(11, hf.numPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.reads = 0;
+        for (int i = 0; i < 100; ++i) {
+            hf.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(11, hf.numPages());
+        assertEquals(1, hf.reads);
+    }
+
+    /**
+     * A page filled by a transaction that aborts is not left marked full.
+     */
+    @Test public void abortedInsertFreesPage() throws Exception {
+        TransactionId filler = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(filler, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, empty.numPages());
+        Database.getBufferPool().transactionComplete(filler, false);
+
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(1, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -15,6 +15,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -102,6 +103,40 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.viewIterator(): one reusable tuple, moved from
+     * slot to slot.
+     */
+    @Test public void testViewIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.viewIterator();
+
+        Tuple first = null;
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (first == null)
+                first = tup;
+            assertSame(first, tup);
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(row, tup.getRecordId().getTupleNumber());
+            row++;
+        }
+        assertEquals(20, row);
+    }
+
+    /**
+     * Unit test for HeapPage.getField()
+     */
+    @Test public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int row = 0; row < 20; row++) {
+            assertEquals(new IntField(EXAMPLE_VALUES[row][0]), page.getField(row, 0));
+            assertEquals(new IntField(EXAMPLE_VALUES[row][1]), page.getField(row, 1));
+        }
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -13,6 +14,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
+import simpledb.storage.IntField;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -131,6 +133,35 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before-image is the page as read until the page is first modified,
+     * and setBeforeImage() moves it forward.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData()));
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Tuples handed out by the iterator keep their values after the page
+     * changes underneath them.
+     */
+    @Test public void tuplesSurviveModification() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], ((IntField) first.getField(0)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][1], ((IntField) first.getField(1)).getValue());
+    }
+
     /**
      * JUnit suite target
      */
@@ -130,6 +130,78 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * SUM_COUNT partials combined by SC_AVG give the same result as AVG.
+   */
+  @Test public void sumCountScAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator partial = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    while (scan1.hasNext())
+      partial.mergeTupleIntoGroup(scan1.next());
+    OpIterator it = partial.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new int[] { 1, 12, 3,
+                    3, 12, 3,
+                    5, 7, 1 }), it);
+
+    // merge the partials twice over: the average is unchanged
+    IntegerAggregator merge = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    for (int i = 0; i < 2; i++) {
+      it.rewind();
+      while (it.hasNext())
+        merge.mergeTupleIntoGroup(it.next());
+    }
+    OpIterator avgs = merge.iterator();
+    avgs.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4,
+                    3, 4,
+                    5, 7 }), avgs);
+  }
+
+  /**
+   * AVG sums in 64 bits, so large values do not overflow.
+   */
+  @Test public void avgNoOverflow() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE - 2 });
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE - 1 }), it);
+  }
+
+  /**
+   * Many groups, so that the group table has to grow several times.
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 2000;
+    int[] in = new int[groups * 2 * 2];
+    int[] out = new int[groups * 2];
+    for (int i = 0; i < groups; i++) {
+      in[4 * i] = i * 7;
+      in[4 * i + 1] = i;
+      in[4 * i + 2] = i * 7;
+      in[4 * i + 3] = 1;
+      out[2 * i] = i * 7;
+      out[2 * i + 1] = i + 1;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, in);
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, out), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
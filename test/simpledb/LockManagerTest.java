@@ -0,0 +1,245 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+    private static final long LONG_WAIT = 10000;
+
+    private LockManager lm;
+    private PageId p0;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /**
+     * Starts a thread that requests a lock and records the outcome.
+     */
+    private Thread request(TransactionId tid, Permissions perm, long timeout,
+                           AtomicReference<Object> outcome) {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireLock(tid, p0, perm, timeout);
+                outcome.set(Boolean.TRUE);
+            } catch (TransactionAbortedException e) {
+                outcome.set(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * A blocked writer is woken as soon as the reader releases.
+     */
+    @Test public void waiterWokenOnRelease() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+        AtomicReference<Object> w = new AtomicReference<>();
+        Thread t = request(tid2, Permissions.READ_WRITE, LONG_WAIT, w);
+        Thread.sleep(100);
+        assertNull(w.get());
+
+        lm.releaseLock(tid1, p0);
+        t.join(1000);
+        assertEquals(Boolean.TRUE, w.get());
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertFalse(lm.holdsLock(tid1, p0));
+    }
+
+    /**
+     * A new reader queues behind a waiting writer instead of overtaking it.
+     */
+    @Test public void fifo() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+        AtomicReference<Object> w = new AtomicReference<>();
+        AtomicReference<Object> r = new AtomicReference<>();
+        Thread writer = request(tid2, Permissions.READ_WRITE, LONG_WAIT, w);
+        Thread.sleep(100);
+        Thread reader = request(tid3, Permissions.READ_ONLY, LONG_WAIT, r);
+        Thread.sleep(100);
+        assertNull(w.get());
+        assertNull(r.get());
+
+        lm.releaseLock(tid1, p0);
+        writer.join(1000);
+        assertEquals(Boolean.TRUE, w.get());
+        Thread.sleep(100);
+        assertNull(r.get());
+
+        lm.releaseAllLock(tid2);
+        reader.join(1000);
+        assertEquals(Boolean.TRUE, r.get());
+    }
+
+    /**
+     * The only reader of a page can upgrade without waiting; otherwise the
+     * upgrade waits for the other readers.
+     */
+    @Test public void upgrade() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 0);
+        assertTrue(lm.holdsLock(tid1, p0));
+        lm.releaseAllLock(tid1);
+
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY, 0);
+        lm.acquireLock(tid2, p0, Permissions.READ_ONLY, 0);
+        try {
+            lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 100);
+            fail("upgrade should time out while tid2 reads");
+        } catch (TransactionAbortedException expected) {
+        }
+        lm.releaseAllLock(tid2);
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 0);
+    }
+
+    /**
+     * Completing a transaction cancels its pending requests.
+     */
+    @Test public void releaseAllCancelsWaiter() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE, 0);
+        AtomicReference<Object> w = new AtomicReference<>();
+        Thread t = request(tid2, Permissions.READ_WRITE, LONG_WAIT, w);
+        Thread.sleep(100);
+
+        lm.releaseAllLock(tid2);
+        t.join(1000);
+        assertTrue(w.get() instanceof TransactionAbortedException);
+
+        lm.releaseAllLock(tid1);
+        assertFalse(lm.holdsLock(tid2, p0));
+    }
+
+    /**
+     * Two transactions each waiting for the other's page: the younger one is
+     * aborted as soon as the cycle closes, and the older one gets its lock
+     * once the younger releases.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, p1, Permissions.READ_ONLY);
+
+        AtomicReference<Object> older = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireLock(tid1, p1, Permissions.READ_WRITE);
+                older.set(Boolean.TRUE);
+            } catch (TransactionAbortedException e) {
+                older.set(e);
+            }
+        });
+        t.start();
+        Thread.sleep(100);
+        assertNull(older.get());
+
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+            fail("tid2 closes the cycle and is the youngest");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertNull(older.get());
+
+        lm.releaseAllLock(tid2);
+        t.join(1000);
+        assertEquals(Boolean.TRUE, older.get());
+        assertTrue(lm.holdsLock(tid1, p1));
+    }
+
+    /**
+     * A cycle closed by the older transaction aborts the younger one, which
+     * is already waiting.
+     */
+    @Test public void deadlockAbortsWaitingVictim() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+
+        AtomicReference<Object> younger = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+                younger.set(Boolean.TRUE);
+            } catch (TransactionAbortedException e) {
+                younger.set(e);
+            }
+        });
+        t.start();
+        Thread.sleep(100);
+        assertNull(younger.get());
+
+        AtomicReference<Object> older = new AtomicReference<>();
+        Thread o = new Thread(() -> {
+            try {
+                lm.acquireLock(tid1, p1, Permissions.READ_WRITE);
+                older.set(Boolean.TRUE);
+            } catch (TransactionAbortedException e) {
+                older.set(e);
+            }
+        });
+        o.start();
+        t.join(1000);
+        assertTrue(younger.get() instanceof TransactionAbortedException);
+
+        lm.releaseAllLock(tid2);
+        o.join(1000);
+        assertEquals(Boolean.TRUE, older.get());
+    }
+
+    /**
+     * Many single-lock transactions contending for a few pages all get their
+     * locks: a waiter is woken whenever its request is granted.
+     */
+    @Test public void contendedRequestsAllGranted() throws Exception {
+        int threads = 8;
+        int rounds = 500;
+        AtomicReference<Object> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int seed = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    for (int r = 0; r < rounds; r++) {
+                        TransactionId tid = new TransactionId();
+                        PageId pid = new HeapPageId(1, (seed + r) % 4);
+                        lm.acquireLock(tid, pid, r % 3 == 0 ? Permissions.READ_WRITE : Permissions.READ_ONLY, LONG_WAIT);
+                        assertTrue(lm.holdsLock(tid, pid));
+                        lm.releaseAllLock(tid);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertNull(failure.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -59,6 +59,21 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for Tuple.merge()
+     */
+    @Test public void merge() {
+        Tuple t1 = Utility.getHeapTuple(new int[]{1, 2});
+        Tuple t2 = Utility.getHeapTuple(new int[]{3});
+        TupleDesc td = TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc());
+
+        Tuple t = Tuple.merge(td, t1, t2);
+        assertEquals(td, t.getTupleDesc());
+        assertEquals(new IntField(1), t.getField(0));
+        assertEquals(new IntField(2), t.getField(1));
+        assertEquals(new IntField(3), t.getField(2));
+    }
+
     /**
      * JUnit suite target
      */
@@ -20,9 +20,22 @@ import simpledb.transaction.TransactionId;
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, List<List<Integer>> expectedResult)
             throws DbException, TransactionAbortedException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, expectedResult, Aggregate.DEFAULT_MEMORY_BUDGET);
+    }
+
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, List<List<Integer>> expectedResult,
+                                  long memoryBudget)
+            throws DbException, TransactionAbortedException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, expectedResult, memoryBudget, 1);
+    }
+
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, List<List<Integer>> expectedResult,
+                                  long memoryBudget, int parallelism)
+            throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, table.getId(), "");
-        Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation);
+        Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation, memoryBudget);
+        ag.setParallelism(parallelism);
 
         SystemTestUtil.matchTuples(ag, expectedResult);
         Database.getBufferPool().transactionComplete(tid);
@@ -83,17 +96,28 @@ public class AggregateTest extends SimpleDbTestBase {
     private final static int COLUMNS = 3;
     private void doAggregate(Aggregator.Op operation, int groupColumn)
             throws IOException, DbException, TransactionAbortedException {
+        doAggregate(operation, groupColumn, ROWS, MAX_VALUE, Aggregate.DEFAULT_MEMORY_BUDGET);
+    }
+
+    private void doAggregate(Aggregator.Op operation, int groupColumn, int rows, int maxValue, long memoryBudget)
+            throws IOException, DbException, TransactionAbortedException {
+        doAggregate(operation, groupColumn, rows, maxValue, memoryBudget, 1);
+    }
+
+    private void doAggregate(Aggregator.Op operation, int groupColumn, int rows, int maxValue, long memoryBudget,
+                             int parallelism)
+            throws IOException, DbException, TransactionAbortedException {
         // Create the table
         List<List<Integer>> createdTuples = new ArrayList<>();
         HeapFile table = SystemTestUtil.createRandomHeapFile(
-                COLUMNS, ROWS, MAX_VALUE, null, createdTuples);
+                COLUMNS, rows, maxValue, null, createdTuples);
 
         // Compute the expected answer
         List<List<Integer>> expected =
                 aggregate(createdTuples, operation, groupColumn);
 
         // validate that we get the answer
-        validateAggregate(table, operation, 1, groupColumn, expected);
+        validateAggregate(table, operation, 1, groupColumn, expected, memoryBudget, parallelism);
     }
 
     @Test public void testSum() throws IOException, DbException, TransactionAbortedException {
@@ -121,6 +145,34 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /** A budget far below the size of the groups forces them to disk. */
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.AVG, 0, ROWS, MAX_VALUE, 1024);
+    }
+
+    /** Partitions that still do not fit are split again. */
+    @Test public void testSpillRepartition() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.SUM, 0, 8 * ROWS, 8 * ROWS, 4096);
+        doAggregate(Aggregator.Op.MIN, 0, 8 * ROWS, 8 * ROWS, 4096);
+        doAggregate(Aggregator.Op.COUNT, 0, 8 * ROWS, 8 * ROWS, 4096);
+    }
+
+    /** Enough rows of COLUMNS ints to fill MIN_PAGES_PER_WORKER pages for each of 4 workers. */
+    private final static int PARALLEL_ROWS = 4 * Aggregate.MIN_PAGES_PER_WORKER * 400;
+
+    /** A table large enough to be split over several workers. */
+    @Test public void testParallel() throws IOException, DbException, TransactionAbortedException {
+        int rows = PARALLEL_ROWS;
+        doAggregate(Aggregator.Op.AVG, 0, rows, MAX_VALUE, Aggregate.DEFAULT_MEMORY_BUDGET, 4);
+        doAggregate(Aggregator.Op.COUNT, 0, rows, MAX_VALUE, Aggregate.DEFAULT_MEMORY_BUDGET, 4);
+        doAggregate(Aggregator.Op.MAX, Aggregator.NO_GROUPING, rows, MAX_VALUE, Aggregate.DEFAULT_MEMORY_BUDGET, 4);
+    }
+
+    /** Workers hand over their groups early, and the merged groups spill. */
+    @Test public void testParallelSpill() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.SUM, 0, PARALLEL_ROWS, 4 * ROWS, 4096, 4);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
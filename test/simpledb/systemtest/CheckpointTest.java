@@ -0,0 +1,208 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Test that checkpoints do not stop the buffer pool, that the page cleaner
+ * writes out pages of running transactions which are still rolled back if
+ * they abort or crash, and that recovery redoes the changes a checkpoint
+ * found unwritten.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private static Tuple tuple(int v) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(v));
+        t.setField(1, new IntField(-v));
+        return t;
+    }
+
+    private Transaction insert(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(v));
+        return t;
+    }
+
+    // whether the first page of the file on disk holds the value
+    private boolean onDisk(int v) {
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    @Test public void testCheckpointDoesNotHoldBufferPool() throws Exception {
+        insert(1).commit();
+        Transaction running = insert(2);
+
+        BufferPool bp = Database.getBufferPool();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (bp) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.start();
+        held.await();
+
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        checkpoint.start();
+        checkpoint.join(10_000);
+        boolean blocked = checkpoint.isAlive();
+        release.countDown();
+        holder.join();
+        checkpoint.join();
+        assertFalse("checkpoint waited for the buffer pool", blocked);
+
+        running.commit();
+        assertTrue(onDisk(2));
+    }
+
+    @Test public void testCleanedPageUndoneOnAbort() throws Exception {
+        insert(1).commit();
+        Transaction t = insert(2);
+        assertFalse(onDisk(2));
+
+        assertEquals(1, Database.getBufferPool().cleanPages(0));
+        assertTrue(onDisk(2));
+
+        t.abort();
+        assertFalse(onDisk(2));
+        assertTrue(onDisk(1));
+    }
+
+    @Test public void testCleanedPageUndoneAfterCrash() throws Exception {
+        insert(1).commit();
+        insert(2);
+        Database.getBufferPool().cleanPages(0);
+        assertTrue(onDisk(2));
+
+        crashAndRecover();
+        assertFalse(onDisk(2));
+        assertTrue(onDisk(1));
+    }
+
+    @Test public void testCleanerThreadWritesOldPages() throws Exception {
+        Database.getBufferPool().setCleanerAge(10);
+        Transaction t = insert(1);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!onDisk(1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("the cleaner did not write the page", onDisk(1));
+        t.commit();
+        assertTrue(onDisk(1));
+    }
+
+    @Test public void testCleanerFailureFailsCommit() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        hf = new HeapFile(file, Utility.getTupleDesc(2)) {
+            @Override
+            public void writePage(Page page) throws IOException {
+                writes.incrementAndGet();
+                throw new IOException("disk gone");
+            }
+        };
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.getBufferPool().setCleanerAge(10);
+        Transaction t = insert(1);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (writes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, writes.get());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("page cleaner")) {
+                thread.join();
+            }
+        }
+        try {
+            t.commit();
+            fail("expected exception");
+        } catch (RuntimeException e) {
+            assertEquals("the page cleaner failed", e.getCause().getMessage());
+        }
+        assertEquals("the cleaner was restarted", 1, writes.get());
+    }
+
+    @Test public void testRedoChangeUnwrittenAtCheckpoint() throws Exception {
+        // log a change of a page without writing the page, as a stolen page whose write was cut short
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        HeapPage before = new HeapPage(page.getId(), page.getPageData());
+        page.insertTuple(tuple(1));
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        Database.getLogFile().logWrite(tid, before, page);
+        Database.getLogFile().logCommit(tid);
+
+        // the checkpoint keeps the change in the log, since its dirty page table has the page
+        Database.getLogFile().logCheckpoint();
+        assertFalse(onDisk(1));
+
+        crashAndRecover();
+        assertArrayEquals(page.getPageData(), hf.readPage(page.getId()).getPageData());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
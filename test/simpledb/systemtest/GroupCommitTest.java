@@ -0,0 +1,141 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Test that concurrent commits share forces of the log, and that a commit
+ * forces the log once for all the pages it writes.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 25;
+
+    /**
+     * Run ROUNDS rounds of THREADS transactions that commit at the same time.
+     *
+     * @param tables if not null, the transactions of each thread first insert
+     *               a tuple into the thread's own table
+     */
+    private void commitConcurrently(HeapFile[] tables) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            HeapFile table = tables == null ? null : tables[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int r = 0; r < ROUNDS; r++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        if (table != null) {
+                            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(r, 2));
+                        }
+                        barrier.await();
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                    barrier.reset();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("commit failed: " + errors, errors.isEmpty());
+    }
+
+    @Test public void testCommitsShareForces() throws Exception {
+        LogFile log = Database.getLogFile();
+        // hold a force until every thread of a round is waiting for it
+        log.setGroupCommit(100_000, THREADS);
+        commitConcurrently(null);
+
+        int commits = THREADS * ROUNDS;
+        // a BEGIN and a COMMIT record for each transaction
+        assertEquals(2 * commits, log.getTotalRecords());
+        assertTrue("too many forces: " + log.getForceCount(), log.getForceCount() <= commits / 2);
+    }
+
+    @Test public void testCommitsWithChangesShareForces() throws Exception {
+        HeapFile[] tables = new HeapFile[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            tables[i] = emptyTable();
+        }
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(100_000, THREADS);
+        commitConcurrently(tables);
+
+        int commits = THREADS * ROUNDS;
+        // a BEGIN, an UPDATE and a COMMIT record for each transaction
+        assertEquals(3 * commits, log.getTotalRecords());
+        // a force before writing the page, and a share of a force for the commit
+        assertTrue("too many forces: " + log.getForceCount(), log.getForceCount() <= commits + commits / 2);
+        List<List<Integer>> rows = new ArrayList<>();
+        for (int r = 0; r < ROUNDS; r++) {
+            rows.add(Arrays.asList(r, r));
+        }
+        for (HeapFile table : tables) {
+            SystemTestUtil.matchTuples(table, rows);
+        }
+    }
+
+    @Test public void testOneForceForAllPagesOfACommit() throws Exception {
+        HeapFile[] tables = { emptyTable(), emptyTable(), emptyTable() };
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        for (HeapFile table : tables) {
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(1, 2));
+        }
+        long before = log.getForceCount();
+        t.commit();
+        // one force for the three pages, and one for the commit
+        assertEquals(2, log.getForceCount() - before);
+    }
+
+    private static HeapFile emptyTable() throws IOException {
+        File file = File.createTempFile("groupcommit", ".dat");
+        file.deleteOnExit();
+        return Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @Test public void testFullGroupIsNotHeldBack() throws Exception {
+        LogFile log = Database.getLogFile();
+        // a single commit makes a full group, so the delay never applies
+        log.setGroupCommit(10_000_000, 1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            t.commit();
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(5, log.getForceCount());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
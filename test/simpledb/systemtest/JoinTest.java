@@ -5,15 +5,28 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.ParallelHashJoin;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.DbFile;
+import simpledb.storage.IntField;
 import simpledb.storage.HeapFile;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -64,6 +77,235 @@ public class JoinTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /**
+     * Hash join of two tables with random join keys under the given memory
+     * budget, checked with a rewind.
+     */
+    public void validateHashJoin(int table1Rows, int table2Rows, int maxValue, long memoryBudget)
+            throws IOException, DbException, TransactionAbortedException {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        validateEquiJoin(table1Rows, table2Rows, maxValue,
+                (ss1, ss2) -> new HashEquiJoin(p, ss1, ss2, memoryBudget));
+    }
+
+    /**
+     * Parallel hash join of two tables with random join keys, checked with a
+     * rewind.
+     */
+    public void validateParallelHashJoin(int table1Rows, int table2Rows, int maxValue, int parallelism)
+            throws IOException, DbException, TransactionAbortedException {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        validateEquiJoin(table1Rows, table2Rows, maxValue, (ss1, ss2) -> {
+            ParallelHashJoin j = new ParallelHashJoin(p, ss1, ss2);
+            j.setParallelism(parallelism);
+            return j;
+        });
+    }
+
+    /**
+     * Sort-merge join of two tables with random join keys, each sorted under
+     * the given memory budget, checked with a rewind.
+     */
+    public void validateSortMergeJoin(int table1Rows, int table2Rows, int maxValue, Predicate.Op op,
+            long memoryBudget)
+            throws IOException, DbException, TransactionAbortedException {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        validateJoin(table1Rows, table2Rows, maxValue, op,
+                (ss1, ss2) -> new SortMergeJoin(p, ss1, ss2, memoryBudget));
+    }
+
+    /**
+     * Block nested-loop join of two tables with random join keys, with
+     * blocks of the given number of outer pages, checked with a rewind.
+     */
+    public void validateBlockJoin(int table1Rows, int table2Rows, int maxValue, Predicate.Op op,
+            int blockPages)
+            throws IOException, DbException, TransactionAbortedException {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        validateJoin(table1Rows, table2Rows, maxValue, op, (ss1, ss2) -> {
+            Join j = new Join(p, ss1, ss2);
+            j.setBlockPages(blockPages);
+            return j;
+        });
+    }
+
+    /**
+     * Index nested-loop join of a heap file with a B+ tree keyed on the join
+     * field, both with random join keys, checked with a rewind.
+     */
+    public void validateIndexNestedLoopJoin(int table1Rows, int table2Rows, int maxValue, Predicate.Op op)
+            throws IOException, DbException, TransactionAbortedException {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        validateJoin(table1Rows, table2Rows, maxValue, op, true,
+                (ss1, ss2) -> new IndexNestedLoopJoin(p, ss1, ss2));
+    }
+
+    private void validateEquiJoin(int table1Rows, int table2Rows, int maxValue,
+            BiFunction<OpIterator, OpIterator, OpIterator> join)
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(table1Rows, table2Rows, maxValue, Predicate.Op.EQUALS, join);
+    }
+
+    private void validateJoin(int table1Rows, int table2Rows, int maxValue, Predicate.Op op,
+            BiFunction<OpIterator, OpIterator, OpIterator> join)
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(table1Rows, table2Rows, maxValue, op, false, join);
+    }
+
+    /**
+     * @param indexTable2 whether the right table is a B+ tree keyed on the
+     *                    join field rather than a heap file
+     */
+    private void validateJoin(int table1Rows, int table2Rows, int maxValue, Predicate.Op op,
+            boolean indexTable2, BiFunction<OpIterator, OpIterator, OpIterator> join)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, table1Rows, maxValue, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        DbFile table2 = indexTable2
+                ? BTreeUtility.createRandomBTreeFile(COLUMNS, table2Rows, maxValue, null, t2Tuples, 0)
+                : SystemTestUtil.createRandomHeapFile(COLUMNS, table2Rows, maxValue, null, t2Tuples);
+
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        if (op == Predicate.Op.EQUALS) {
+            Map<Integer, List<List<Integer>>> t2ByKey = new HashMap<>();
+            for (List<Integer> t2 : t2Tuples) {
+                t2ByKey.computeIfAbsent(t2.get(0), k -> new ArrayList<>()).add(t2);
+            }
+            for (List<Integer> t1 : t1Tuples) {
+                for (List<Integer> t2 : t2ByKey.getOrDefault(t1.get(0), new ArrayList<>())) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        } else {
+            for (List<Integer> t1 : t1Tuples) {
+                for (List<Integer> t2 : t2Tuples) {
+                    if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                        List<Integer> out = new ArrayList<>(t1);
+                        out.addAll(t2);
+                        expectedResults.add(out);
+                    }
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        OpIterator joinOp = join.apply(ss1, ss2);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        // drain, rewind and drain again
+        joinOp.open();
+        while (joinOp.hasNext()) {
+            joinOp.next();
+        }
+        joinOp.rewind();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            count++;
+        }
+        assertEquals(expectedResults.size(), count);
+
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(1000, 1000, 500, HashEquiJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /** The build side is partitioned, and each partition fits. */
+    @Test public void testHashJoinPartitioned()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(2000, 1500, 1000, 16 << 10);
+    }
+
+    /** Partitions that do not fit are joined in chunks. */
+    @Test public void testHashJoinChunked()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(2000, 1500, 1000, 2 << 10);
+    }
+
+    /** Small inputs, partitioned on one thread. */
+    @Test public void testParallelHashJoinSerial()
+            throws IOException, DbException, TransactionAbortedException {
+        validateParallelHashJoin(2000, 1500, 1000, 1);
+    }
+
+    /** The smaller right input is the build side. */
+    @Test public void testParallelHashJoinBuildRight()
+            throws IOException, DbException, TransactionAbortedException {
+        validateParallelHashJoin(3000, 500, 200, 4);
+    }
+
+    /**
+     * Both tables are large enough to be scanned, partitioned and joined by
+     * several workers.
+     */
+    @Test public void testParallelHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        int rows = 4 * ParallelHashJoin.MIN_PAGES_PER_WORKER * 500;
+        validateParallelHashJoin(rows, rows, 10 * rows, 4);
+    }
+
+    @Test public void testSortMergeJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        validateSortMergeJoin(1000, 1000, 500, Predicate.Op.EQUALS, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /** Both inputs are sorted in many runs on disk. */
+    @Test public void testSortMergeJoinExternal()
+            throws IOException, DbException, TransactionAbortedException {
+        validateSortMergeJoin(2000, 1500, 1000, Predicate.Op.EQUALS, 4 << 10);
+    }
+
+    @Test public void testSortMergeBandJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        validateSortMergeJoin(100, 80, 1000, Predicate.Op.LESS_THAN, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+        validateSortMergeJoin(100, 80, 1000, Predicate.Op.LESS_THAN_OR_EQ, 1 << 10);
+        validateSortMergeJoin(80, 100, 1000, Predicate.Op.GREATER_THAN, 1 << 10);
+        validateSortMergeJoin(80, 100, 50, Predicate.Op.GREATER_THAN_OR_EQ, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /** Inputs already in key order are merged as they are. */
+    @Test public void testSortMergeJoinSortedInputs()
+            throws IOException, DbException, TransactionAbortedException {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        validateEquiJoin(1000, 800, 300, (ss1, ss2) -> {
+            OpIterator o1 = new OrderBy(0, true, ss1);
+            OpIterator o2 = new OrderBy(0, true, ss2);
+            assertTrue(SortMergeJoin.isSortedOn(o1, 0) && SortMergeJoin.isSortedOn(o2, 0));
+            return new SortMergeJoin(p, o1, o2);
+        });
+    }
+
+    @Test public void testBlockNestedLoopJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        // a page holds about 500 of these tuples, so several blocks of one page each
+        validateBlockJoin(2000, 1000, 1000, Predicate.Op.EQUALS, 1);
+        validateBlockJoin(600, 10, 1000, Predicate.Op.LESS_THAN, 1);
+        validateBlockJoin(2000, 1000, 1000, Predicate.Op.EQUALS, Join.DEFAULT_BLOCK_PAGES);
+    }
+
+    @Test public void testIndexNestedLoopJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        // several batches of outer tuples, with repeated keys in each
+        validateIndexNestedLoopJoin(3 * IndexNestedLoopJoin.BATCH_SIZE, 2000, 1000, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testIndexNestedLoopBandJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        validateIndexNestedLoopJoin(100, 80, 1000, Predicate.Op.LESS_THAN);
+        validateIndexNestedLoopJoin(80, 100, 50, Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
     @Test public void testSingleMatch()
             throws IOException, DbException, TransactionAbortedException {
         validateJoin(1, 1, 1, 1);
@@ -0,0 +1,140 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TopN;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class LimitTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 2000;
+    private static final String TABLE = "LT";
+
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        // few distinct values, so the sort fields have many ties
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 100, null, tuples, "c");
+        Database.getCatalog().addTable(table, TABLE);
+        TableStats.setTableStats(TABLE, new TableStats(table.getId(), 1000));
+    }
+
+    private static List<List<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        return result;
+    }
+
+    private void validateLimit(int limit) throws DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        Limit op = new Limit(limit, new SeqScan(tid, table.getId(), ""));
+        List<List<Integer>> expected = tuples.subList(0, Math.min(limit, ROWS));
+        op.open();
+        assertEquals(expected, drain(op));
+        op.rewind();
+        assertEquals(expected, drain(op));
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Check a TopN against a stable sort of the whole table.
+     */
+    private void validateTopN(int[] fields, boolean[] asc, int limit)
+            throws DbException, TransactionAbortedException {
+        Comparator<List<Integer>> order = (a, b) -> 0;
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            Comparator<List<Integer>> key = Comparator.comparing(t -> t.get(f));
+            order = order.thenComparing(asc[i] ? key : key.reversed());
+        }
+        List<List<Integer>> sorted = new ArrayList<>(tuples);
+        sorted.sort(order);
+        List<List<Integer>> expected = sorted.subList(0, Math.min(limit, ROWS));
+
+        TransactionId tid = new TransactionId();
+        TopN op = new TopN(fields, asc, limit, new SeqScan(tid, table.getId(), ""));
+        op.open();
+        assertEquals(expected, drain(op));
+        op.rewind();
+        assertEquals(expected, drain(op));
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testLimit() throws DbException, TransactionAbortedException {
+        validateLimit(50);
+        validateLimit(0);
+        validateLimit(ROWS + 1);
+    }
+
+    @Test public void testTopN() throws DbException, TransactionAbortedException {
+        validateTopN(new int[]{1}, new boolean[]{false}, 50);
+        validateTopN(new int[]{0, 2}, new boolean[]{true, false}, 50);
+        validateTopN(new int[]{2}, new boolean[]{true}, 0);
+        validateTopN(new int[]{2}, new boolean[]{true}, ROWS + 1);
+    }
+
+    @Test public void testOrderByLimitQuery() throws Exception {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + TABLE + " t WHERE t.c0 > 10 ORDER BY t.c1 DESC LIMIT 50;");
+        assertEquals(50, lp.getLimit());
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        // the ORDER BY and the LIMIT are run as one TopN under the projection
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) > 10) {
+                expected.add(t);
+            }
+        }
+        expected.sort(Comparator.comparing((List<Integer> t) -> t.get(1)).reversed());
+        plan.open();
+        assertEquals(expected.subList(0, 50), drain(plan));
+        plan.close();
+
+        lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM " + TABLE + " t LIMIT 7;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        plan.open();
+        assertEquals(tuples.subList(0, 7), drain(plan));
+        plan.close();
+
+        lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM " + TABLE + " t;");
+        assertEquals(LogicalPlan.NO_LIMIT, lp.getLimit());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LimitTest.class);
+    }
+}
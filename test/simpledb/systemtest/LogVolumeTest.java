@@ -0,0 +1,94 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+
+/**
+ * Test that only the first write of a page after a checkpoint logs page
+ * images, and later inserts and deletes only log the slots they change.
+ */
+public class LogVolumeTest extends SimpleDbTestBase {
+    private static final int ROWS = 100;
+    // BEGIN and COMMIT records, and a SLOT_UPDATE record of one slot
+    private static final int SMALL = 200;
+
+    private static Tuple tuple(int v) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(v));
+        t.setField(1, new IntField(-v));
+        return t;
+    }
+
+    /**
+     * @return the number of bytes logged by a transaction that inserts or
+     * deletes the tuple
+     */
+    private static long logged(DbFile f, Tuple t, boolean insert) throws Exception {
+        LogFile log = Database.getLogFile();
+        long lsn = log.getCurrentLsn();
+        Transaction tr = new Transaction();
+        tr.start();
+        if (insert) {
+            Database.getBufferPool().insertTuple(tr.getId(), f.getId(), t);
+        } else {
+            Database.getBufferPool().deleteTuple(tr.getId(), t);
+        }
+        tr.commit();
+        return log.getCurrentLsn() - lsn;
+    }
+
+    @Test public void testHeapPageSlots() throws Exception {
+        File file = File.createTempFile("volume", ".dat");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+
+        assertTrue(logged(hf, tuple(0), true) > BufferPool.getPageSize());
+        Tuple last = null;
+        for (int i = 1; i <= ROWS; i++) {
+            last = tuple(i);
+            long bytes = logged(hf, last, true);
+            assertTrue("insert logged " + bytes + " bytes", bytes < SMALL);
+        }
+        long bytes = logged(hf, last, false);
+        assertTrue("delete logged " + bytes + " bytes", bytes < SMALL);
+
+        // images again after a checkpoint
+        Database.getLogFile().logCheckpoint();
+        assertTrue(logged(hf, tuple(ROWS + 1), true) > BufferPool.getPageSize());
+        assertTrue(logged(hf, tuple(ROWS + 2), true) < SMALL);
+    }
+
+    @Test public void testLeafPageSlots() throws Exception {
+        File file = File.createTempFile("volume", ".dat");
+        file.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+
+        // creates the root pointer and the first leaf
+        assertTrue(logged(bf, tuple(0), true) > BufferPool.getPageSize());
+        // ascending keys are appended to the leaf without moving other tuples
+        for (int i = 1; i <= ROWS; i++) {
+            long bytes = logged(bf, tuple(i), true);
+            assertTrue("insert logged " + bytes + " bytes", bytes < SMALL);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogVolumeTest.class);
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Test that log records are addressed by LSNs that only grow, also when the
+ * log is truncated or recovered.
+ */
+public class LsnTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("lsn", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    // insert a row in a transaction of its own
+    private void insert(int v) throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tuple = new Tuple(Utility.getTupleDesc(2));
+        tuple.setField(0, new IntField(v));
+        tuple.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple);
+        t.commit();
+    }
+
+    @Test public void testUpdateRecordSize() throws Exception {
+        LogFile log = Database.getLogFile();
+        insert(1);
+        long lsn = log.getCurrentLsn();
+        insert(2);
+        // BEGIN, UPDATE and COMMIT: at most the two page images and a few bytes for the rest
+        long logged = log.getCurrentLsn() - lsn;
+        assertTrue("logged " + logged + " bytes", logged < 2 * BufferPool.getPageSize() + 100);
+    }
+
+    @Test public void testLsnsSurviveTruncation() throws Exception {
+        LogFile log = Database.getLogFile();
+        for (int i = 0; i < 10; i++) {
+            insert(i);
+        }
+        long lsn = log.getCurrentLsn();
+        long length = new File("log").length();
+
+        // nothing is active, so the checkpoint truncates all the records before it
+        log.logCheckpoint();
+        assertTrue(new File("log").length() < length);
+        assertTrue(log.getCurrentLsn() > lsn);
+
+        lsn = log.getCurrentLsn();
+        insert(10);
+        assertTrue(log.getCurrentLsn() > lsn);
+    }
+
+    @Test public void testLsnsContinueAfterRecovery() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            insert(i);
+        }
+        Database.getLogFile().logCheckpoint();
+        insert(5);
+        long lsn = Database.getLogFile().getCurrentLsn();
+
+        // restart, as after a crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertTrue(Database.getLogFile().getCurrentLsn() >= lsn);
+        insert(6);
+        assertTrue(Database.getLogFile().getCurrentLsn() > lsn);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LsnTest.class);
+    }
+}
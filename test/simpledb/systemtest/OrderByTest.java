@@ -0,0 +1,88 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    /**
+     * Sort a table with random values on the given fields under the given
+     * memory budget, and check the exact order of the result, then again
+     * after a rewind.
+     */
+    private void validateOrderBy(int rows, int maxValue, int[] fields, boolean[] asc,
+            long memoryBudget)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples);
+
+        // the table is read in the order the tuples were generated, and the sort is stable
+        Comparator<List<Integer>> order = (a, b) -> 0;
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            Comparator<List<Integer>> key = Comparator.comparing(t -> t.get(f));
+            order = order.thenComparing(asc[i] ? key : key.reversed());
+        }
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(order);
+
+        TransactionId tid = new TransactionId();
+        OrderBy orderBy = new OrderBy(fields, asc, new SeqScan(tid, table.getId(), ""), memoryBudget);
+        orderBy.open();
+        assertEquals(expected, drain(orderBy));
+        orderBy.rewind();
+        assertEquals(expected, drain(orderBy));
+        orderBy.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> drain(OrderBy orderBy)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        while (orderBy.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(orderBy.next()));
+        }
+        return result;
+    }
+
+    @Test public void testOrderBy()
+            throws IOException, DbException, TransactionAbortedException {
+        validateOrderBy(1000, 1000, new int[]{1}, new boolean[]{true}, OrderBy.DEFAULT_MEMORY_BUDGET);
+        validateOrderBy(1000, 1000, new int[]{1}, new boolean[]{false}, OrderBy.DEFAULT_MEMORY_BUDGET);
+    }
+
+    @Test public void testOrderByMultipleFields()
+            throws IOException, DbException, TransactionAbortedException {
+        // few distinct values, so the later fields break many ties
+        validateOrderBy(1000, 5, new int[]{0, 2, 1}, new boolean[]{true, false, true},
+                OrderBy.DEFAULT_MEMORY_BUDGET);
+    }
+
+    @Test public void testExternalOrderBy()
+            throws IOException, DbException, TransactionAbortedException {
+        // about 50 tuples per run, merged two at a time over several passes
+        validateOrderBy(5000, 100, new int[]{0, 1}, new boolean[]{false, true}, 4 << 10);
+        // few enough runs to merge at once
+        validateOrderBy(5000, 100, new int[]{2}, new boolean[]{true}, 64 << 10);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
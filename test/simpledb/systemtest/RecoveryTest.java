@@ -0,0 +1,187 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Test recovery from logs written directly through the LogFile, so that the
+ * pages on disk can be made to lag behind the log as after a crash, and
+ * measure how fast a large log is recovered.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final File LOG = new File("log");
+
+    private File file;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private static Tuple tuple(int v) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(v));
+        t.setField(1, new IntField(-v));
+        return t;
+    }
+
+    private HeapPage page(int pageNo) throws IOException {
+        return new HeapPage(new HeapPageId(hf.getId(), pageNo), HeapPage.createEmptyPageData());
+    }
+
+    // log the insert of a tuple into the page, without writing the page out
+    private static void logInsert(TransactionId tid, HeapPage page, int v) throws IOException, DbException {
+        HeapPage before = new HeapPage(page.getId(), page.getPageData());
+        page.insertTuple(tuple(v));
+        Database.getLogFile().logWrite(tid, before, page);
+    }
+
+    private static TransactionId begin() throws IOException {
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        return tid;
+    }
+
+    // restart, as after a crash, and recover
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    private void assertOnDisk(HeapPage expected) {
+        assertArrayEquals(expected.getPageData(), hf.readPage(expected.getId()).getPageData());
+    }
+
+    @Test public void testRedoCommittedChangeNotOnDisk() throws Exception {
+        HeapPage page = page(0);
+        TransactionId tid = begin();
+        logInsert(tid, page, 1);
+        logInsert(tid, page, 2);
+        Database.getLogFile().logCommit(tid);
+
+        // the page was never written
+        crashAndRecover();
+        assertOnDisk(page);
+    }
+
+    @Test public void testUndoLoserOnceAcrossCrashes() throws Exception {
+        HeapPage page = page(0);
+        TransactionId winner = begin();
+        logInsert(winner, page, 1);
+        Database.getLogFile().logCommit(winner);
+        HeapPage committed = new HeapPage(page.getId(), page.getPageData());
+
+        TransactionId loser = begin();
+        logInsert(loser, page, 2);
+        logInsert(loser, page, 3);
+        Database.getLogFile().force();
+        // the loser's change reached the disk
+        hf.writePage(page);
+
+        crashAndRecover();
+        assertOnDisk(committed);
+        // the rollback is logged, so recovering again does not undo anything twice
+        crashAndRecover();
+        assertOnDisk(committed);
+    }
+
+    /**
+     * Recover a log of a few megabytes, mostly page images, once with a
+     * single redo thread and once with one per core. With
+     * -Dsimpledb.benchmark=true it also prints the recovery rate.
+     */
+    @Test public void testRecoverLargeLog() throws Exception {
+        final int pages = 1024;
+        final int transactions = 500;
+        final int pagesPerTransaction = 20;
+        final int losers = 16;
+        Random random = new Random(24);
+        LogFile log = Database.getLogFile();
+
+        // the first write of every page logs its images
+        HeapPage[] current = new HeapPage[pages];
+        TransactionId tid = begin();
+        for (int i = 0; i < pages; i++) {
+            current[i] = page(i);
+            logInsert(tid, current[i], i);
+        }
+        log.logCommit(tid);
+        // later writes log their slots
+        int v = pages;
+        for (int t = 0; t < transactions; t++) {
+            tid = begin();
+            for (int i = 0; i < pagesPerTransaction; i++) {
+                logInsert(tid, current[random.nextInt(pages)], v++);
+            }
+            log.logCommit(tid);
+        }
+        HeapPage[] committed = new HeapPage[pages];
+        for (int i = 0; i < pages; i++) {
+            committed[i] = new HeapPage(current[i].getId(), current[i].getPageData());
+        }
+        for (int t = 0; t < losers; t++) {
+            tid = begin();
+            for (int i = 0; i < pagesPerTransaction; i++) {
+                logInsert(tid, current[t * pages / losers + i % (pages / losers)], v++);
+            }
+        }
+        log.force();
+
+        File savedLog = File.createTempFile("recovery", ".log");
+        savedLog.deleteOnExit();
+        File savedFile = File.createTempFile("recovery", ".dat");
+        savedFile.deleteOnExit();
+        Files.copy(LOG.toPath(), savedLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(file.toPath(), savedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        for (int threads : new int[]{1, Math.max(2, Runtime.getRuntime().availableProcessors())}) {
+            Files.copy(savedLog.toPath(), LOG.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(savedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Database.reset();
+            hf = Utility.openHeapFile(2, file);
+            Database.getLogFile().setRecoveryThreads(threads);
+
+            double megabytes = LOG.length() / (1024.0 * 1024.0);
+            long start = System.nanoTime();
+            Database.getLogFile().recover();
+            if (Boolean.getBoolean("simpledb.benchmark")) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("recovered %.1f MB of log in %.0f ms with %d redo threads: %.1f MB/s%n",
+                        megabytes, seconds * 1000, threads, megabytes / seconds);
+            }
+
+            for (HeapPage page : committed) {
+                assertOnDisk(page);
+            }
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}